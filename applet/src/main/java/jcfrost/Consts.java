@@ -10,6 +10,60 @@ public class Consts {
 
     public static final byte INS_RESET = (byte) 0x05;
     public static final byte INS_GROUP_KEY = (byte) 0x06;
+    public static final byte INS_COMMITMENTS = (byte) 0x07;
+    public static final byte INS_PREPROCESS = (byte) 0x08;
+    public static final byte INS_SIGN_PREPROCESSED = (byte) 0x09;
+    public static final byte INS_SIGN_STREAM = (byte) 0x0a;
+    public static final byte INS_SIGN_BATCH = (byte) 0x0b;
+    public static final byte INS_CAPABILITIES = (byte) 0x0c;
+    public static final byte INS_MEMORY = (byte) 0x0d;
+    public static final byte INS_PROFILE = (byte) 0x0e;
+
+    // Tags of TLV install parameters
+    public static final byte INSTALL_MAX_PARTIES = (byte) 0x01;
+    public static final byte INSTALL_CARD_TYPE = (byte) 0x02;
+    public static final byte INSTALL_ALLOCATOR = (byte) 0x03;
+    public static final byte INSTALL_SESSIONS = (byte) 0x04;
+    public static final byte INSTALL_NONCE_STORAGE = (byte) 0x05;
+    public static final byte INSTALL_DISABLED_ENGINES = (byte) 0x06; // DEBUG only, CAPABILITY_EC_* engines withheld from probing
+    public static final byte INSTALL_PROFILE = (byte) 0x07; // DEBUG only, enables profiling without PROFILE
+
+    // Components reported by MEMORY, in the order of initialization
+    public static final byte MEMORY_RESOURCES = (byte) 0; // JCMathLib helpers and the curve
+    public static final byte MEMORY_KEYS = (byte) 1;
+    public static final byte MEMORY_HASHER = (byte) 2;
+    public static final byte MEMORY_POOL = (byte) 3;
+    public static final byte MEMORY_CACHE = (byte) 4;
+    public static final byte MEMORY_SESSIONS = (byte) 5;
+    public static final byte MEMORY_COMPONENTS = (byte) 6;
+
+    // Phases of signing distinguished by PROFILE
+    public static final byte PHASE_OTHER = (byte) 0;
+    public static final byte PHASE_BINDING_FACTORS = (byte) 1;
+    public static final byte PHASE_GROUP_COMMITMENT = (byte) 2;
+    public static final byte PHASE_LAMBDA = (byte) 3;
+    public static final byte PHASE_CHALLENGE = (byte) 4;
+    public static final byte PHASE_SHARE = (byte) 5;
+    public static final byte PHASES = (byte) 6;
+
+    // Bits of the engine profile returned by CAPABILITIES
+    public static final short CAPABILITY_EC_HW_XY = (short) 0x0001;
+    public static final short CAPABILITY_EC_HW_X = (short) 0x0002;
+    public static final short CAPABILITY_EC_HW_ADD = (short) 0x0004;
+    public static final short CAPABILITY_EC_SW_DOUBLE = (short) 0x0008;
+    public static final short CAPABILITY_RSA_SQ = (short) 0x0010;
+    public static final short CAPABILITY_RSA_PUB = (short) 0x0020;
+
+    // Modes of SIGN selected by P1
+    public static final byte SIGN_SINGLE = (byte) 0x00;
+    public static final byte SIGN_FIRST_PASS = (byte) 0x01;
+    public static final byte SIGN_SECOND_PASS = (byte) 0x02;
+    public static final byte SIGN_PREHASHED = (byte) 0x03;
+
+    public static final byte STREAM_LIST = (byte) 0x00;
+    public static final byte STREAM_MESSAGE = (byte) 0x01;
+    public static final byte STREAM_BIND = (byte) 0x02;
+    public static final byte STREAM_FINAL = (byte) 0x03;
 
     public final static short E_ALREADY_INITIALIZED = (short) 0xee00;
     public final static short E_UNINITIALIZED = (short) 0xee01;
@@ -21,6 +75,17 @@ public class Consts {
     public final static short E_NOT_ENOUGH_COMMITMENTS = (short) 0xee07;
     public final static short E_IDENTIFIER_NOT_INCLUDED = (short) 0xee08;
     public final static short E_COMMITMENT_MISMATCH = (short) 0xee09;
+    public final static short E_NOT_COMMITTED = (short) 0xee0a;
+    public final static short E_INVALID_SLOT = (short) 0xee0b;
+    public final static short E_SLOT_EMPTY = (short) 0xee0c;
+    public final static short E_INVALID_SESSION = (short) 0xee0d;
+    public final static short E_STREAM_PHASE = (short) 0xee0e;
+    public final static short E_STREAM_MISMATCH = (short) 0xee0f;
+    public final static short E_INVALID_POINT = (short) 0xee10;
+    // 0xc000 | (reason & 0x1f) << 8 | II for an E_* reason of the entry with index II; other errors are not wrapped
+    public final static short E_COMMITMENTS_PREFIX = (short) 0xc000;
+    // 0xa000 | (reason & 0x1f) << 8 | II for an E_* reason of the message with index II; other errors are not wrapped
+    public final static short E_SIGN_BATCH_PREFIX = (short) 0xa000;
 
     public final static short SW_Exception = (short) 0xff01;
     public final static short SW_ArrayIndexOutOfBoundsException = (short) 0xff02;
@@ -42,9 +107,19 @@ public class Consts {
     final static byte[] H4_TAG = {(byte) 0x6d, (byte) 0x73, (byte) 0x67};
     final static byte[] H5_TAG = {(byte) 0x63, (byte) 0x6f, (byte) 0x6d};
     final static byte[] ZPAD = {(byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0, (byte) 0x0};
+    // SHA-256 intermediate state after absorbing ZPAD and the number of absorbed bytes
+    final static byte[] ZPAD_STATE = {(byte) 0xda, (byte) 0x56, (byte) 0x98, (byte) 0xbe, (byte) 0x17, (byte) 0xb9, (byte) 0xb4, (byte) 0x69, (byte) 0x62, (byte) 0x33, (byte) 0x57, (byte) 0x99, (byte) 0x77, (byte) 0x9f, (byte) 0xbe, (byte) 0xca, (byte) 0x8c, (byte) 0xe5, (byte) 0xd4, (byte) 0x91, (byte) 0xc0, (byte) 0xd2, (byte) 0x62, (byte) 0x43, (byte) 0xba, (byte) 0xfe, (byte) 0xf9, (byte) 0xea, (byte) 0x18, (byte) 0x37, (byte) 0xa9, (byte) 0xd8};
+    final static byte[] ZPAD_LENGTH = {(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x40};
+    // 2^256 - r, i.e., 2^256 mod r, for the group order r of secp256k1
+    final static byte[] ORDER_COMPLEMENT = {(byte) 0x01, (byte) 0x45, (byte) 0x51, (byte) 0x23, (byte) 0x19, (byte) 0x50, (byte) 0xb7, (byte) 0x5f, (byte) 0xc4, (byte) 0x40, (byte) 0x2d, (byte) 0xa1, (byte) 0x73, (byte) 0x2f, (byte) 0xc9, (byte) 0xbe, (byte) 0xbf};
     final static byte[] HELPER = {(byte) 0x00, (byte) 0x30};
     final static byte[] ZERO = {(byte) 0x00};
     final static byte[] ONE = {(byte) 0x01};
     final static byte[] TWO = {(byte) 0x02};
-    final static byte MAX_PARTIES = (byte) 12;
+    final static byte MAX_PARTIES = (byte) 12; // default capacity of a stored commitment list
+    final static short MAX_CAPACITY = (short) 252; // largest capacity whose uncompressed commitment list fits a short length
+    final static short MAX_STREAM_PARTIES = (short) 255;
+    final static byte NONCE_POOL_SIZE = (byte) 8;
+    final static byte MAX_SESSIONS = (byte) 2; // default number of signing sessions
+    final static byte MAX_SESSIONS_LIMIT = (byte) 8;
 }
@@ -1,191 +1,887 @@
 package jcfrost;
 
+import javacard.framework.CardRuntimeException;
+import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
-import javacard.security.RandomData;
+import javacard.security.MessageDigest;
 import jcfrost.jcmathlib.*;
 
 import static jcfrost.JCFROST.*;
 
 public class FrostSession {
-    // private RandomData rng = RandomData.getInstance(RandomData.ALG_KEYGENERATION);
-    private RandomData rng = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-
-    private short storedCommitments = 0;
-    private short index = -1;
-
-    private BigNat hidingNonce = new BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, JCFROST.rm);
-    private BigNat bindingNonce = new BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, JCFROST.rm);
-    private ECPoint hidingPoint = new ECPoint(JCFROST.curve);
-    private ECPoint bindingPoint = new ECPoint(JCFROST.curve);
-
-    private FrostCommitment[] commitments = new FrostCommitment[Consts.MAX_PARTIES];
-
-    // Computation-only (TODO consider sharing with other instances)
-    private BigNat identifierBuffer = new BigNat((short) 1, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
-    private byte[] nonceBuffer = JCSystem.makeTransientByteArray((short) (2 * 32), JCSystem.CLEAR_ON_RESET);
-    private byte[] ramArray = JCSystem.makeTransientByteArray((short) (3 * 32 + 1), JCSystem.CLEAR_ON_RESET);
-    private BigNat numerator = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
-    private BigNat denominator = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
-    private BigNat challenge = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
-    private BigNat lambda = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
-    private BigNat tmp = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
-    private ECPoint groupCommitment = new ECPoint(JCFROST.curve);
-    private ECPoint tmpPoint = new ECPoint(JCFROST.curve);
-    private ECPoint tmpPoint2 = new ECPoint(JCFROST.curve);
-    private byte[] rhoBuffer = JCSystem.makeTransientByteArray((short) (33 + 3 * 32), JCSystem.CLEAR_ON_RESET);
-    private BigNat[] bindingFactors = new BigNat[Consts.MAX_PARTIES];
-
-    public FrostSession() {
-        for(short i = 0; i < (short) Consts.MAX_PARTIES; ++i) {
-            commitments[i] = new FrostCommitment();
+    private final static short STORED = 0;
+    private final static short INDEX = 1;
+    private final static short STREAM_PHASE = 2;
+    private final static short STREAM_COUNT = 3;
+    private final static short STREAM_LAST = 4;
+    private final static short STREAM_OWN = 5;
+    private final static short STREAM_BOUND = 6;
+
+    // Streamed signing state: H5 || H4 || lambda numerator || lambda denominator || own rho || R
+    private final static short S_LIST_DIGEST = 0;
+    private final static short S_MSG_DIGEST = 32;
+    private final static short S_NUMERATOR = 64;
+    private final static short S_DENOMINATOR = 96;
+    private final static short S_RHO = 128;
+    private final static short S_COMMITMENT = 160;
+    private final static short STREAM_LENGTH = (short) (S_COMMITMENT + 65);
+
+    private byte sessionId;
+
+    // Nonce state in memory of the configured type; the committed flag is cleared together with the nonces
+    private BigNat hidingNonce = new BigNat((short) 32, JCFROST.nonceMemoryType, JCFROST.rm);
+    private BigNat bindingNonce = new BigNat((short) 32, JCFROST.nonceMemoryType, JCFROST.rm);
+    private byte[] ownCommitment = JCFROST.rm.memAlloc.allocateByteArray((short) (POINT_SIZE + UNCOMPRESSED_POINT_SIZE), JCFROST.nonceMemoryType); // encoding needs space for the uncompressed point
+    private byte[] committed = JCFROST.rm.memAlloc.allocateByteArray((short) 1, JCFROST.nonceMemoryType);
+
+    // Commitment list in RAM: identifiers, hiding || binding of each party, and [stored count, own index]
+    private short[] identifiers = JCFROST.rm.memAlloc.allocateShortArray(JCFROST.capacity, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+    private byte[] points = JCFROST.rm.memAlloc.allocateByteArray((short) (JCFROST.capacity * 2 * UNCOMPRESSED_POINT_SIZE), JCFROST.listMemoryType);
+    private short[] state = JCFROST.rm.memAlloc.allocateShortArray((short) 7, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+    private MessageDigest listHasher = HashToField.newDigest(); // H5 over the commitment list, reused for H2 in streamed signing
+    private byte[] stream = JCFROST.rm.memAlloc.allocateByteArray(STREAM_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+    private MessageDigest streamHasher = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false); // H4 of the repeated message
+
+    // Command chains: partially received tuple and [buffered length, active chain]
+    // The active chain is identified by (INS << 8) | (P1 << 4) | (session id + 1)
+    private final static short TUPLE_LENGTH = (short) (2 + 2 * POINT_SIZE);
+    private final static short CHAIN_BUFFERED = 0;
+    private final static short CHAIN_ID = 1;
+    private final static byte TUPLE_COMMITMENT = 0;
+    private final static byte TUPLE_STREAM_LIST = 1;
+    private final static byte TUPLE_STREAM_BIND = 2;
+    private static byte[] chainBuffer;
+    private static short[] chainState;
+
+    // Computation-only, shared by all sessions
+    private static BigNat identifierBuffer;
+    private static byte[] ramArray;
+    private static BigNat challenge;
+    private static BigNat lambda;
+    private static ECPoint groupCommitment;
+    private static ECPoint tmpPoint;
+    private static ECPoint tmpPoint2;
+    private static JacobianPoint groupAccumulator;
+    // Scalars of the hiding and binding commitments (one and binding factor) for multi-scalar multiplication
+    private static byte[] tripledScalars; // scratch of the software multi-scalar multiplication
+    private static byte[] rhoBuffer;
+    private static BigNat[] bindingFactors;
+
+    // x_j / (x_j - x_i) mod r for identifiers x_j in 1..capacity, computed at SETUP for own identifier x_i
+    private static BigNat[] lagrangeFactors;
+
+    // Scratch scalars leased from ResourceManager helpers for the duration of a computation
+    private final static byte NUMERATOR = ObjectAllocator.BN_A;
+    private final static byte DENOMINATOR = ObjectAllocator.BN_C;
+    private final static byte TMP = ObjectAllocator.BN_B;
+
+    /**
+     * Allocate objects shared by all sessions. Must be called before the first session is created.
+     */
+    public static void initShared() {
+        chainBuffer = JCFROST.rm.memAlloc.allocateByteArray(TUPLE_LENGTH, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+        chainState = JCFROST.rm.memAlloc.allocateShortArray((short) 2, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+
+        identifierBuffer = new BigNat((short) 2, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
+        ramArray = JCFROST.rm.memAlloc.allocateByteArray((short) (3 * 32 + 1), JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+        challenge = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
+        lambda = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
+        groupCommitment = new ECPoint(JCFROST.curve);
+        tmpPoint = new ECPoint(JCFROST.curve);
+        tmpPoint2 = new ECPoint(JCFROST.curve);
+        boolean multKA = OperationSupport.getInstance().EC_HW_XY || OperationSupport.getInstance().EC_HW_X;
+        if(!OperationSupport.getInstance().EC_HW_ADD || !multKA) {
+            groupAccumulator = new JacobianPoint(JCFROST.curve);
+        }
+        rhoBuffer = JCFROST.rm.memAlloc.allocateByteArray((short) (33 + 3 * 32), JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+        bindingFactors = new BigNat[JCFROST.capacity];
+        for(short i = 0; i < JCFROST.capacity; ++i) {
             bindingFactors[i] = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
         }
+        lagrangeFactors = new BigNat[JCFROST.capacity];
+        for(short i = 0; i < JCFROST.capacity; ++i) {
+            lagrangeFactors[i] = new BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, JCFROST.rm);
+        }
+        if(!multKA) {
+            tripledScalars = JCFROST.rm.memAlloc.allocateByteArray((short) (JCFROST.capacity * 33), JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+        }
     }
 
-    public short commit(byte[] output, short offset) {
-        hidingPoint.setW(SecP256k1.G, (short) 0, (short) SecP256k1.G.length);
-        bindingPoint.setW(SecP256k1.G, (short) 0, (short) SecP256k1.G.length);
-        nonceGenerate(hidingNonce);
-        nonceGenerate(bindingNonce);
-        hidingPoint.multiplication(hidingNonce);
-        bindingPoint.multiplication(bindingNonce);
-        hidingPoint.encode(output, offset, true);
-        bindingPoint.encode(output, (short) (offset + 33), true);
+    /**
+     * Precompute Lagrange factors of all identifiers in 1..capacity with respect to the card's identifier.
+     */
+    public static void precomputeLagrange() {
+        // Denominators x_j - x_i are inverted at once; binding factors are free during SETUP
+        identifierBuffer.setValue(JCFROST.identifier);
+        for(short j = 1; j <= JCFROST.capacity; ++j) {
+            BigNat factor = bindingFactors[(short) (j - 1)];
+            factor.setSize((short) 32);
+            factor.setValue(j);
+            if(j == JCFROST.identifier) {
+                factor.setValue((byte) 1);
+            } else {
+                factor.modSub(identifierBuffer, JCFROST.curve.rBN);
+            }
+        }
+        BigNat.modInvBatch(bindingFactors, lagrangeFactors, JCFROST.capacity, JCFROST.curve.rBN);
+        BigNat numerator = leaseScalar(NUMERATOR);
+        for(short j = 1; j <= JCFROST.capacity; ++j) {
+            if(j == JCFROST.identifier) {
+                continue;
+            }
+            numerator.setSize((short) 32);
+            numerator.setValue(j);
+            numerator.modMult(bindingFactors[(short) (j - 1)], JCFROST.curve.rBN);
+            lagrangeFactors[(short) (j - 1)].copy(numerator);
+        }
+        JCFROST.rm.release(NUMERATOR);
+    }
+
+    /**
+     * Lease a ResourceManager helper as a 32-byte scalar.
+     */
+    private static BigNat leaseScalar(byte helper) {
+        BigNat scalar = JCFROST.rm.lease(helper);
+        scalar.setSize((short) 32);
+        return scalar;
+    }
+
+    public FrostSession(byte sessionId) {
+        this.sessionId = sessionId;
         reset();
+    }
+
+    public short commit(byte[] output, short offset) {
+        JCFROST.pool.nonceGenerate(hidingNonce);
+        JCFROST.pool.nonceGenerate(bindingNonce);
+        tmpPoint.mulGenerator(hidingNonce);
+        tmpPoint.encode(ownCommitment, (short) 0, POINT_SIZE == 33);
+        tmpPoint.encode(output, offset, true);
+        tmpPoint.mulGenerator(bindingNonce);
+        tmpPoint.encode(ownCommitment, POINT_SIZE, POINT_SIZE == 33);
+        tmpPoint.encode(output, (short) (offset + 33), true);
+        resetList();
+        committed[0] = 1;
         return (short) 66;
     }
 
-    public void commitment(byte party_identifier, byte[] data, short offset) {
-        if(storedCommitments >= JCFROST.maxParties) {
-            reset();
+    public void commitment(short party_identifier, byte[] data, short offset) {
+        if(state[STORED] == 0) {
+            // The list may have been cleared on deselect, so the rest of the state is reinitialised here
+            state[INDEX] = -1;
+            startListHash();
+        }
+        if(state[STORED] >= JCFROST.maxParties || state[STORED] >= JCFROST.capacity) {
+            resetList();
             ISOException.throwIt(Consts.E_TOO_MANY_COMMITMENTS);
         }
-        commitments[storedCommitments].identifier = party_identifier;
-        if(storedCommitments > 0 && party_identifier <= commitments[(short) (storedCommitments - 1)].identifier) {
-            reset();
+        identifiers[state[STORED]] = party_identifier;
+        if(state[STORED] > 0 && !identifierLess(identifiers[(short) (state[STORED] - 1)], party_identifier)) {
+            resetList();
             ISOException.throwIt(Consts.E_IDENTIFIER_ORDERING);
         }
-        if(commitments[storedCommitments].identifier == JCFROST.identifier) {
-            index = storedCommitments;
-            hidingPoint.encode(ramArray, (short) 0, POINT_SIZE == 33);
-            if(Util.arrayCompare(ramArray, (short) 0, data, offset, POINT_SIZE) != 0) {
-                reset();
+        if(identifiers[state[STORED]] == JCFROST.identifier) {
+            state[INDEX] = state[STORED];
+        }
+        // Commitments of preprocessed nonces are checked against the pool slot when signing
+        if(state[INDEX] == state[STORED] && committed[0] != 0) {
+            if(Util.arrayCompare(ownCommitment, (short) 0, data, offset, (short) (2 * POINT_SIZE)) != 0) {
+                resetList();
                 ISOException.throwIt(Consts.E_COMMITMENT_MISMATCH);
             }
-            bindingPoint.encode(ramArray, (short) 0, POINT_SIZE == 33);
-            if(Util.arrayCompare(ramArray, (short) 0, data, (short) (offset + POINT_SIZE), POINT_SIZE) != 0) {
-                reset();
+        }
+        short stored = (short) (state[STORED] * 2 * UNCOMPRESSED_POINT_SIZE);
+        storePoint(data, offset, stored);
+        storePoint(data, (short) (offset + POINT_SIZE), (short) (stored + UNCOMPRESSED_POINT_SIZE));
+        hashCommitment(party_identifier, data, offset);
+        ++state[STORED];
+    }
+
+    /**
+     * Decompress and validate a received point and store it uncompressed into the commitment list,
+     * so that no square root is computed when signing.
+     */
+    private void storePoint(byte[] data, short offset, short storedOffset) {
+        try {
+            tmpPoint.decode(data, offset, POINT_SIZE);
+        } catch (CardRuntimeException e) {
+            resetList();
+            ISOException.throwIt(Consts.E_INVALID_POINT);
+        }
+        tmpPoint.encode(points, storedOffset, false);
+    }
+
+    /**
+     * Compare identifiers as unsigned 16-bit numbers.
+     */
+    private static boolean identifierLess(short a, short b) {
+        return (short) (a ^ (short) 0x8000) < (short) (b ^ (short) 0x8000);
+    }
+
+    private void startListHash() {
+        listHasher.reset();
+        listHasher.update(Consts.CONTEXT_STRING, (short) 0, (short) Consts.CONTEXT_STRING.length);
+        listHasher.update(Consts.H5_TAG, (short) 0, (short) Consts.H5_TAG.length);
+    }
+
+    /**
+     * Absorb identifier || compressed hiding || compressed binding into H5 of the commitment list.
+     */
+    private void hashCommitment(short party_identifier, byte[] data, short offset) {
+        Util.arrayFillNonAtomic(ramArray, (short) 0, (short) 30, (byte) 0);
+        Util.setShort(ramArray, (short) 30, party_identifier);
+        if(POINT_SIZE == 65) {
+            ramArray[32] = (byte) ((data[(short) (offset + 64)] & 0x01) == 0x00 ? 2 : 3);
+            Util.arrayCopyNonAtomic(data, (short) (offset + 1), ramArray, (short) 33, (short) 32);
+            listHasher.update(ramArray, (short) 0, (short) 65);
+            ramArray[0] = (byte) ((data[(short) (offset + 2 * 65 - 1)] & 0x01) == 0x00 ? 2 : 3);
+            Util.arrayCopyNonAtomic(data, (short) (offset + 65 + 1), ramArray, (short) 1, (short) 32);
+            listHasher.update(ramArray, (short) 0, (short) 33);
+        } else {
+            listHasher.update(ramArray, (short) 0, (short) 32);
+            listHasher.update(data, offset, (short) 66);
+        }
+    }
+
+    public void commitmentsBegin() {
+        if(!chainContinues(Consts.INS_COMMITMENTS, (byte) 0)) {
+            resetList();
+            chainStart(Consts.INS_COMMITMENTS, (byte) 0);
+        }
+    }
+
+    /**
+     * Consume a chunk of identifier || hiding || binding tuples. Tuples may span chunk boundaries.
+     */
+    public void commitments(byte[] data, short offset, short length) {
+        consumeTuples(data, offset, length, TUPLE_COMMITMENT);
+    }
+
+    public void commitmentsEnd() {
+        chainEnd();
+    }
+
+    private void batchCommitment(byte[] data, short offset) {
+        short entry = state[STORED];
+        try {
+            commitment(Util.getShort(data, offset), data, (short) (offset + 2));
+        } catch (ISOException e) {
+            throwEntryError(Consts.E_COMMITMENTS_PREFIX, e, entry);
+        }
+    }
+
+    /**
+     * Rethrow an E_* error together with the index of the failing entry, other errors are rethrown unchanged.
+     */
+    private static void throwEntryError(short prefix, ISOException e, short entry) {
+        short reason = e.getReason();
+        if((short) (reason & (short) 0xffe0) == (short) 0xee00) {
+            ISOException.throwIt((short) (prefix | ((reason & 0x1f) << 8) | (entry & 0xff)));
+        }
+        throw e;
+    }
+
+    private boolean chainContinues(byte ins, byte p1) {
+        return chainState[CHAIN_ID] == chainId(ins, p1);
+    }
+
+    private void chainStart(byte ins, byte p1) {
+        chainAbort();
+        chainState[CHAIN_BUFFERED] = 0;
+        chainState[CHAIN_ID] = chainId(ins, p1);
+    }
+
+    private void chainEnd() {
+        short buffered = chainState[CHAIN_BUFFERED];
+        chainState[CHAIN_BUFFERED] = 0;
+        chainState[CHAIN_ID] = 0;
+        if(buffered != 0) {
+            resetList();
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+    }
+
+    private short chainId(byte ins, byte p1) {
+        return (short) (((ins & 0xff) << 8) | ((p1 & 0x0f) << 4) | (sessionId + 1));
+    }
+
+    /**
+     * Abort an unfinished command chain and reset the session that started it.
+     */
+    public static void chainAbort() {
+        short active = chainState[CHAIN_ID];
+        if(active != 0) {
+            chainState[CHAIN_BUFFERED] = 0;
+            chainState[CHAIN_ID] = 0;
+            JCFROST.sessions[(short) ((active & 0x0f) - 1)].resetList();
+        }
+    }
+
+    /**
+     * Pass identifier || hiding || binding tuples to a handler. Tuples may span chunk boundaries.
+     */
+    private void consumeTuples(byte[] data, short offset, short length, byte handler) {
+        short buffered = chainState[CHAIN_BUFFERED];
+        if(buffered > 0) {
+            short missing = (short) (TUPLE_LENGTH - buffered);
+            if(missing > length) {
+                missing = length;
+            }
+            Util.arrayCopyNonAtomic(data, offset, chainBuffer, buffered, missing);
+            buffered += missing;
+            offset += missing;
+            length -= missing;
+            if(buffered < TUPLE_LENGTH) {
+                chainState[CHAIN_BUFFERED] = buffered;
+                return;
+            }
+            chainState[CHAIN_BUFFERED] = 0;
+            handleTuple(chainBuffer, (short) 0, handler);
+        }
+        while(length >= TUPLE_LENGTH) {
+            handleTuple(data, offset, handler);
+            offset += TUPLE_LENGTH;
+            length -= TUPLE_LENGTH;
+        }
+        Util.arrayCopyNonAtomic(data, offset, chainBuffer, (short) 0, length);
+        chainState[CHAIN_BUFFERED] = length;
+    }
+
+    private void handleTuple(byte[] data, short offset, byte handler) {
+        switch (handler) {
+            case TUPLE_COMMITMENT:
+                batchCommitment(data, offset);
+                break;
+            case TUPLE_STREAM_LIST:
+                streamListTuple(data, offset);
+                break;
+            default:
+                streamBindTuple(data, offset);
+        }
+    }
+
+    /**
+     * Start a phase of streamed signing, unless the APDU continues a command chain of the same phase.
+     */
+    public void streamBegin(byte phase) {
+        if(phase < Consts.STREAM_LIST || phase > Consts.STREAM_FINAL) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if(chainContinues(Consts.INS_SIGN_STREAM, phase)) {
+            return;
+        }
+        if(phase == Consts.STREAM_LIST) {
+            resetList();
+            if(committed[0] == 0) {
+                ISOException.throwIt(Consts.E_NOT_COMMITTED);
+            }
+            state[STREAM_COUNT] = 0;
+            state[STREAM_OWN] = 0;
+            Util.arrayFillNonAtomic(stream, S_NUMERATOR, (short) 64, (byte) 0);
+            stream[(short) (S_NUMERATOR + 31)] = 1;
+            stream[(short) (S_DENOMINATOR + 31)] = 1;
+            startListHash();
+        } else if(phase != state[STREAM_PHASE]) {
+            resetList();
+            ISOException.throwIt(Consts.E_STREAM_PHASE);
+        } else if(phase == Consts.STREAM_MESSAGE) {
+            startMessageHash(listHasher);
+        } else if(phase == Consts.STREAM_BIND) {
+            state[STREAM_BOUND] = 0;
+            startListHash();
+        } else {
+            finalBegin();
+        }
+        state[STREAM_PHASE] = phase;
+        chainStart(Consts.INS_SIGN_STREAM, phase);
+    }
+
+    /**
+     * Start the final pass over the message: H2 after R and the group key, and H4 to check it against the first pass.
+     */
+    private void finalBegin() {
+        HashToField.startZpad(listHasher);
+        ramArray[0] = (byte) ((stream[(short) (S_COMMITMENT + 64)] & 0x01) == 0x00 ? 2 : 3);
+        Util.arrayCopyNonAtomic(stream, (short) (S_COMMITMENT + 1), ramArray, (short) 1, (short) 32);
+        listHasher.update(ramArray, (short) 0, (short) 33);
+        listHasher.update(JCFROST.groupKey, (short) 0, (short) 33);
+        startMessageHash(streamHasher);
+    }
+
+    private void startMessageHash(MessageDigest digest) {
+        digest.reset();
+        digest.update(Consts.CONTEXT_STRING, (short) 0, (short) Consts.CONTEXT_STRING.length);
+        digest.update(Consts.H4_TAG, (short) 0, (short) Consts.H4_TAG.length);
+    }
+
+    private void finalUpdate(byte[] data, short offset, short length) {
+        listHasher.update(data, offset, length);
+        streamHasher.update(data, offset, length);
+    }
+
+    private short finalEnd(byte[] output, short outputOffset) {
+        streamHasher.doFinal(ramArray, (short) 0, (short) 0, ramArray, (short) 0);
+        if(Util.arrayCompare(ramArray, (short) 0, stream, S_MSG_DIGEST, (short) 32) != 0) {
+            resetList();
+            ISOException.throwIt(Consts.E_STREAM_MISMATCH);
+        }
+        Profiler.setPhase(Consts.PHASE_CHALLENGE);
+        JCFROST.hasher.hash_to_field_internal(listHasher, Consts.H2_TAG, challenge);
+        Profiler.setPhase(Consts.PHASE_LAMBDA);
+        lambda.fromByteArray(stream, S_NUMERATOR, (short) 32);
+        lambda.modMult(secret, JCFROST.curve.rBN);
+        bindingFactors[0].fromByteArray(stream, S_RHO, (short) 32);
+        committed[0] = 0;
+        computeSignatureShare(bindingFactors[0], output, outputOffset);
+        resetList();
+        return (short) 32;
+    }
+
+    public void streamUpdate(byte[] data, short offset, short length) {
+        switch (state[STREAM_PHASE]) {
+            case Consts.STREAM_LIST:
+                BigNat numerator = leaseScalar(NUMERATOR);
+                BigNat denominator = leaseScalar(DENOMINATOR);
+                numerator.fromByteArray(stream, S_NUMERATOR, (short) 32);
+                denominator.fromByteArray(stream, S_DENOMINATOR, (short) 32);
+                consumeTuples(data, offset, length, TUPLE_STREAM_LIST);
+                numerator.prependZeros((short) 32, stream, S_NUMERATOR);
+                denominator.prependZeros((short) 32, stream, S_DENOMINATOR);
+                JCFROST.rm.release(NUMERATOR);
+                JCFROST.rm.release(DENOMINATOR);
+                break;
+            case Consts.STREAM_MESSAGE:
+                listHasher.update(data, offset, length);
+                break;
+            case Consts.STREAM_BIND:
+                Util.arrayCopyNonAtomic(JCFROST.groupKey, (short) 0, rhoBuffer, (short) 0, (short) 33);
+                Util.arrayCopyNonAtomic(stream, S_MSG_DIGEST, rhoBuffer, (short) 33, (short) 32);
+                Util.arrayCopyNonAtomic(stream, S_LIST_DIGEST, rhoBuffer, (short) 65, (short) 32);
+                Util.arrayFillNonAtomic(rhoBuffer, (short) 97, (short) 30, (byte) 0);
+                if(state[STREAM_BOUND] > 0) {
+                    groupCommitment.decode(stream, S_COMMITMENT, (short) 65);
+                }
+                consumeTuples(data, offset, length, TUPLE_STREAM_BIND);
+                if(state[STREAM_BOUND] > 0) {
+                    groupCommitment.encode(stream, S_COMMITMENT, false);
+                }
+                break;
+            default:
+                finalUpdate(data, offset, length);
+        }
+    }
+
+    /**
+     * Finish the current phase of streamed signing.
+     * @return length of the output, i.e., 32 B of the signature share after the final phase and 0 otherwise
+     */
+    public short streamEnd(byte[] output, short outputOffset) {
+        chainEnd();
+        switch (state[STREAM_PHASE]) {
+            case Consts.STREAM_LIST:
+                if(state[STREAM_COUNT] < JCFROST.minParties) {
+                    resetList();
+                    ISOException.throwIt(Consts.E_NOT_ENOUGH_COMMITMENTS);
+                }
+                if(state[STREAM_OWN] == 0) {
+                    resetList();
+                    ISOException.throwIt(Consts.E_IDENTIFIER_NOT_INCLUDED);
+                }
+                listHasher.doFinal(ramArray, (short) 0, (short) 0, stream, S_LIST_DIGEST);
+                BigNat numerator = leaseScalar(NUMERATOR);
+                BigNat denominator = leaseScalar(DENOMINATOR);
+                numerator.fromByteArray(stream, S_NUMERATOR, (short) 32);
+                denominator.fromByteArray(stream, S_DENOMINATOR, (short) 32);
+                if(!denominator.isOne()) {
+                    denominator.modInv(JCFROST.curve.rBN);
+                    numerator.modMult(denominator, JCFROST.curve.rBN);
+                }
+                numerator.prependZeros((short) 32, stream, S_NUMERATOR);
+                JCFROST.rm.release(NUMERATOR);
+                JCFROST.rm.release(DENOMINATOR);
+                break;
+            case Consts.STREAM_MESSAGE:
+                listHasher.doFinal(ramArray, (short) 0, (short) 0, stream, S_MSG_DIGEST);
+                break;
+            case Consts.STREAM_BIND:
+                listHasher.doFinal(ramArray, (short) 0, (short) 0, ramArray, (short) 0);
+                if(state[STREAM_BOUND] != state[STREAM_COUNT]
+                        || Util.arrayCompare(ramArray, (short) 0, stream, S_LIST_DIGEST, (short) 32) != 0) {
+                    resetList();
+                    ISOException.throwIt(Consts.E_STREAM_MISMATCH);
+                }
+                break;
+            default:
+                return finalEnd(output, outputOffset);
+        }
+        ++state[STREAM_PHASE];
+        return (short) 0;
+    }
+
+    /**
+     * First pass over the commitment list: checks, H5 and Lagrange coefficient.
+     */
+    private void streamListTuple(byte[] data, short offset) {
+        short party_identifier = Util.getShort(data, offset);
+        short count = state[STREAM_COUNT];
+        if(count >= JCFROST.maxParties) {
+            resetList();
+            ISOException.throwIt(Consts.E_TOO_MANY_COMMITMENTS);
+        }
+        if(count > 0 && !identifierLess(state[STREAM_LAST], party_identifier)) {
+            resetList();
+            ISOException.throwIt(Consts.E_IDENTIFIER_ORDERING);
+        }
+        if(party_identifier == JCFROST.identifier) {
+            if(Util.arrayCompare(ownCommitment, (short) 0, data, (short) (offset + 2), (short) (2 * POINT_SIZE)) != 0) {
+                resetList();
                 ISOException.throwIt(Consts.E_COMMITMENT_MISMATCH);
             }
+            state[STREAM_OWN] = 1;
+        } else if(party_identifier >= 1 && party_identifier <= JCFROST.capacity) {
+            JCFROST.rm.leased(NUMERATOR).modMult(lagrangeFactors[(short) (party_identifier - 1)], JCFROST.curve.rBN);
+        } else {
+            BigNat tmp = leaseScalar(TMP);
+            identifierBuffer.setValue(party_identifier);
+            JCFROST.rm.leased(NUMERATOR).modMult(identifierBuffer, JCFROST.curve.rBN);
+            tmp.copy(identifierBuffer);
+            identifierBuffer.setValue(JCFROST.identifier);
+            tmp.modSub(identifierBuffer, JCFROST.curve.rBN);
+            JCFROST.rm.leased(DENOMINATOR).modMult(tmp, JCFROST.curve.rBN);
+            JCFROST.rm.release(TMP);
         }
-        Util.arrayCopyNonAtomic(data, offset, commitments[storedCommitments].hiding, (short) 0, POINT_SIZE);
-        Util.arrayCopyNonAtomic(data, (short) (offset + POINT_SIZE), commitments[storedCommitments].binding, (short) 0, POINT_SIZE);
-        ++storedCommitments;
+        hashCommitment(party_identifier, data, (short) (offset + 2));
+        state[STREAM_LAST] = party_identifier;
+        state[STREAM_COUNT] = (short) (count + 1);
+    }
+
+    /**
+     * Second pass over the commitment list: binding factors and group commitment.
+     */
+    private void streamBindTuple(byte[] data, short offset) {
+        short party_identifier = Util.getShort(data, offset);
+        short count = state[STREAM_BOUND];
+        if(count >= state[STREAM_COUNT]) {
+            resetList();
+            ISOException.throwIt(Consts.E_STREAM_MISMATCH);
+        }
+        hashCommitment(party_identifier, data, (short) (offset + 2));
+        Util.setShort(rhoBuffer, (short) 127, party_identifier);
+        JCFROST.hasher.h1(rhoBuffer, (short) 0, (short) rhoBuffer.length, bindingFactors[0]);
+        if(party_identifier == JCFROST.identifier) {
+            bindingFactors[0].prependZeros((short) 32, stream, S_RHO);
+        }
+        // The streamed list is not stored, so its points are decompressed and validated here
+        try {
+            tmpPoint.decode(data, (short) (offset + 2 + POINT_SIZE), POINT_SIZE);
+            tmpPoint2.decode(data, (short) (offset + 2), POINT_SIZE);
+        } catch (CardRuntimeException e) {
+            resetList();
+            ISOException.throwIt(Consts.E_INVALID_POINT);
+        }
+        tmpPoint.multAndAdd(bindingFactors[0], tmpPoint2);
+        if(count == 0) {
+            groupCommitment.copy(tmpPoint);
+        } else {
+            groupCommitment.add(tmpPoint);
+        }
+        state[STREAM_BOUND] = (short) (count + 1);
     }
 
     public void sign(byte[] msg, short msgOffset, short msgLength, byte[] output, short outputOffset) {
-        if(storedCommitments < JCFROST.minParties) {
-            reset();
+        if(committed[0] == 0) {
+            resetList();
+            ISOException.throwIt(Consts.E_NOT_COMMITTED);
+        }
+        checkCommitments();
+        committed[0] = 0;
+        signInternal(msg, msgOffset, msgLength, output, outputOffset, true);
+    }
+
+    /**
+     * Start a pass of SIGN over a message sent as a command chain, unless the APDU continues the chain.
+     * The first pass computes H4 and everything that depends on it, the second one H2 and the signature share.
+     */
+    public void signBegin(byte mode) {
+        if(chainContinues(Consts.INS_SIGN, mode)) {
+            return;
+        }
+        if(mode == Consts.SIGN_FIRST_PASS) {
+            if(committed[0] == 0) {
+                resetList();
+                ISOException.throwIt(Consts.E_NOT_COMMITTED);
+            }
+            checkCommitments();
+            startMessageHash(streamHasher);
+        } else {
+            if(state[STREAM_PHASE] != Consts.STREAM_FINAL) {
+                resetList();
+                ISOException.throwIt(Consts.E_STREAM_PHASE);
+            }
+            finalBegin();
+        }
+        chainStart(Consts.INS_SIGN, mode);
+    }
+
+    public void signUpdate(byte mode, byte[] data, short offset, short length) {
+        if(mode == Consts.SIGN_FIRST_PASS) {
+            streamHasher.update(data, offset, length);
+        } else {
+            finalUpdate(data, offset, length);
+        }
+    }
+
+    /**
+     * Finish a pass of SIGN over a chained message.
+     * @return length of the output, i.e., 32 B of the signature share after the second pass and 0 otherwise
+     */
+    public short signEnd(byte mode, byte[] output, short outputOffset) {
+        chainEnd();
+        if(mode != Consts.SIGN_FIRST_PASS) {
+            return finalEnd(output, outputOffset);
+        }
+        Util.arrayCopyNonAtomic(JCFROST.groupKey, (short) 0, rhoBuffer, (short) 0, (short) 33);
+        streamHasher.doFinal(ramArray, (short) 0, (short) 0, rhoBuffer, (short) 33);
+        Util.arrayCopyNonAtomic(rhoBuffer, (short) 33, stream, S_MSG_DIGEST, (short) 32);
+        listHasher.doFinal(ramArray, (short) 0, (short) 0, rhoBuffer, (short) 65);
+        computeBindingFactors();
+        computeGroupCommitment();
+        computeLambdaCached();
+        groupCommitment.encode(stream, S_COMMITMENT, false);
+        lambda.prependZeros((short) 32, stream, S_NUMERATOR);
+        bindingFactors[state[INDEX]].prependZeros((short) 32, stream, S_RHO);
+        resetList(); // the list is no longer needed, the second pass continues as the final phase of a streamed signing
+        state[STREAM_PHASE] = Consts.STREAM_FINAL;
+        return (short) 0;
+    }
+
+    public void signPreprocessed(byte slot, byte[] msg, short msgOffset, short msgLength, byte[] output, short outputOffset) {
+        checkCommitments();
+        short ownOffset = (short) (state[INDEX] * 2 * UNCOMPRESSED_POINT_SIZE);
+        JCFROST.pool.consume(slot, points, ownOffset, points, (short) (ownOffset + UNCOMPRESSED_POINT_SIZE), hidingNonce, bindingNonce);
+        committed[0] = 0;
+        signInternal(msg, msgOffset, msgLength, output, outputOffset, true);
+    }
+
+    /**
+     * Sign a batch of messages, each with the nonces of its own pool slot, by the same signer set.
+     * Data: message count || party count k || k identifiers || per message: slot || message length (2 B) || message
+     * || k hiding || binding commitments. The group key, lambda and lambda times secret are computed only once.
+     * Shares are kept in place of the already signed messages, so the data is overwritten.
+     * @return number of signature shares written to the output
+     */
+    public short signBatch(byte[] data, short offset, short length, byte[] output, short outputOffset) {
+        short end = (short) (offset + length);
+        if(length < 2) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short count = (short) (data[offset] & 0xff);
+        short parties = (short) (data[(short) (offset + 1)] & 0xff);
+        short identifiersOffset = (short) (offset + 2);
+        offset = (short) (identifiersOffset + 2 * parties);
+        short sharesOffset = offset; // each entry is longer than a share
+        for(short i = 0; i < count; ++i) {
+            if((short) (offset + 3) > end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            byte slot = data[offset];
+            short msgLength = Util.getShort(data, (short) (offset + 1));
+            short msgOffset = (short) (offset + 3);
+            short pointsOffset = (short) (msgOffset + msgLength);
+            offset = (short) (pointsOffset + parties * 2 * POINT_SIZE);
+            if(msgLength < 0 || offset > end || offset < pointsOffset) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            try {
+                resetList();
+                for(short j = 0; j < parties; ++j) {
+                    commitment(Util.getShort(data, (short) (identifiersOffset + 2 * j)), data, (short) (pointsOffset + j * 2 * POINT_SIZE));
+                }
+                checkCommitments();
+                short ownOffset = (short) (state[INDEX] * 2 * UNCOMPRESSED_POINT_SIZE);
+                JCFROST.pool.consume(slot, points, ownOffset, points, (short) (ownOffset + UNCOMPRESSED_POINT_SIZE), hidingNonce, bindingNonce);
+                committed[0] = 0;
+                signInternal(data, msgOffset, msgLength, data, (short) (sharesOffset + 32 * i), i == 0);
+            } catch (ISOException e) {
+                throwEntryError(Consts.E_SIGN_BATCH_PREFIX, e, i);
+            }
+        }
+        if(offset != end) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        Util.arrayCopyNonAtomic(data, sharesOffset, output, outputOffset, (short) (32 * count));
+        return count;
+    }
+
+    private void checkCommitments() {
+        if(state[STORED] < JCFROST.minParties) {
+            resetList();
             ISOException.throwIt(Consts.E_NOT_ENOUGH_COMMITMENTS);
         }
-        if(index == -1) {
-            reset();
+        if(state[INDEX] == -1) {
+            resetList();
             ISOException.throwIt(Consts.E_IDENTIFIER_NOT_INCLUDED);
         }
-        computeBindingFactors(msg, msgOffset, msgLength);
+    }
+
+    /**
+     * Compute the signature share for the stored commitment list.
+     * @param freshLambda whether to compute lambda times secret, otherwise the value from the previous signature is used
+     */
+    private void signInternal(byte[] msg, short msgOffset, short msgLength, byte[] output, short outputOffset, boolean freshLambda) {
+        Util.arrayCopyNonAtomic(JCFROST.groupKey, (short) 0, rhoBuffer, (short) 0, (short) 33);
+        JCFROST.hasher.h4(msg, msgOffset, msgLength, rhoBuffer, (short) 33);
+        listHasher.doFinal(ramArray, (short) 0, (short) 0, rhoBuffer, (short) 65);
+        computeBindingFactors();
         computeGroupCommitment();
-        if(maxParties <= 12) {
-            computeLambdaOptimized();
-        } else {
-            computeLambda();
+        if(freshLambda) {
+            computeLambdaCached();
+            lambda.modMult(secret, JCFROST.curve.rBN);
         }
         computeChallenge(msg, msgOffset, msgLength);
-        computeSignatureShare(output, outputOffset);
+        computeSignatureShare(bindingFactors[state[INDEX]], output, outputOffset);
+        resetList(); // the nonces are spent, so the commitment list cannot be used again
+    }
+
+    private void computeLambdaCached() {
+        Profiler.setPhase(Consts.PHASE_LAMBDA);
+        if(!JCFROST.lambdaCache.lookup(identifiers, state[STORED], lambda)) {
+            if(maxParties > 12 || !computeLambdaOptimized()) {
+                if(!computeLambdaPrecomputed()) {
+                    computeLambda();
+                }
+            }
+            JCFROST.lambdaCache.store(lambda);
+        }
     }
 
+    /**
+     * Discard the commitment list, any streamed or chained signing and the nonces of COMMIT.
+     */
     public void reset() {
-        storedCommitments = 0;
-        index = -1;
+        resetList();
+        committed[0] = 0;
     }
 
-    private void nonceGenerate(BigNat outputNonce) {
-        if(JCFROST.DEBUG) {
-            Util.arrayCopyNonAtomic(JCFROST.DEBUG_RANDOMNESS, JCFROST.DEBUG_RANDOMNESS_OFFSET, nonceBuffer, (short) 0, (short) 32);
-            JCFROST.DEBUG_RANDOMNESS_OFFSET = (short) ((short) (JCFROST.DEBUG_RANDOMNESS_OFFSET + 32) % JCFROST.DEBUG_RANDOMNESS.length);
-        } else {
-            rng.generateData(nonceBuffer, (short) 0, (short) 32);
-            // rng.nextBytes(nonceBuffer, (short) 0, (short) 32);
+    /**
+     * Discard the commitment list and any streamed or chained signing, keeping the nonces of COMMIT.
+     */
+    private void resetList() {
+        state[STORED] = 0;
+        state[INDEX] = -1;
+        state[STREAM_PHASE] = Consts.STREAM_LIST;
+        if((short) (chainState[CHAIN_ID] & 0x0f) == (short) (sessionId + 1)) {
+            chainState[CHAIN_BUFFERED] = 0;
+            chainState[CHAIN_ID] = 0;
         }
-        secret.copyToByteArray(nonceBuffer, (short) 32); // TODO can be preloaded in RAM
-        JCFROST.hasher.h3(nonceBuffer, (short) 0, (short) nonceBuffer.length, outputNonce);
+    }
+
+    /**
+     * Compute lambda as a product of precomputed Lagrange factors, avoiding any inversion.
+     * @return false if some identifier is not covered by the precomputed factors
+     */
+    private boolean computeLambdaPrecomputed() {
+        for(short j = 0; j < state[STORED]; ++j) {
+            if(identifiers[j] < 1 || identifiers[j] > JCFROST.capacity) {
+                return false;
+            }
+        }
+        lambda.setSize((short) 32);
+        lambda.setValue((byte) 1);
+        for(short j = 0; j < state[STORED]; ++j) {
+            if(j == state[INDEX]) {
+                continue;
+            }
+            lambda.modMult(lagrangeFactors[(short) (identifiers[j] - 1)], JCFROST.curve.rBN);
+        }
+        return true;
     }
 
     private void computeLambda() {
+        BigNat numerator = leaseScalar(NUMERATOR);
+        BigNat denominator = leaseScalar(DENOMINATOR);
+        BigNat tmp = leaseScalar(TMP);
         short j;
-        if(index != (short) 0) {
-            numerator.setValue(commitments[0].identifier);
-            denominator.setValue(commitments[0].identifier);
-            identifierBuffer.setValue(commitments[index].identifier);
+        if(state[INDEX] != (short) 0) {
+            numerator.setValue(identifiers[0]);
+            denominator.setValue(identifiers[0]);
+            identifierBuffer.setValue(identifiers[state[INDEX]]);
             denominator.modSub(identifierBuffer, JCFROST.curve.rBN);
             j = 1;
         } else {
-            numerator.setValue(commitments[1].identifier);
-            denominator.setValue(commitments[1].identifier);
-            identifierBuffer.setValue(commitments[index].identifier);
+            numerator.setValue(identifiers[1]);
+            denominator.setValue(identifiers[1]);
+            identifierBuffer.setValue(identifiers[state[INDEX]]);
             denominator.modSub(identifierBuffer, JCFROST.curve.rBN);
             j = 2;
         }
 
-        for(; j < storedCommitments; ++j) {
-            if(j == index) {
+        for(; j < state[STORED]; ++j) {
+            if(j == state[INDEX]) {
                 continue;
             }
-            identifierBuffer.setValue(commitments[j].identifier);
+            identifierBuffer.setValue(identifiers[j]);
             numerator.modMult(identifierBuffer, JCFROST.curve.rBN);
             tmp.copy(identifierBuffer);
-            identifierBuffer.setValue(commitments[index].identifier);
+            identifierBuffer.setValue(identifiers[state[INDEX]]);
             tmp.modSub(identifierBuffer, JCFROST.curve.rBN);
             denominator.modMult(tmp, JCFROST.curve.rBN);
         }
+        JCFROST.rm.release(TMP); // modInv uses the same helper
         denominator.modInv(JCFROST.curve.rBN);
         lambda.copy(numerator);
         lambda.modMult(denominator, JCFROST.curve.rBN);
+        JCFROST.rm.release(NUMERATOR);
+        JCFROST.rm.release(DENOMINATOR);
     }
 
-    private void computeLambdaOptimized() {
+    /**
+     * Compute lambda with native integer arithmetic, which cannot overflow for at most 12 identifiers in 1..12.
+     * @return false if some identifier is out of that range
+     */
+    private boolean computeLambdaOptimized() {
         if(maxParties > 12) {
             ISOException.throwIt(Consts.E_TOO_MANY_PARTIES);
         }
+        for(short j = 0; j < state[STORED]; ++j) {
+            if(identifiers[j] < 1 || identifiers[j] > 12) {
+                return false;
+            }
+        }
         int numeratorAcc;
         int denominatorAcc;
         short j;
-        if(index != (short) 0) {
-            numeratorAcc = commitments[0].identifier;
-            denominatorAcc = commitments[0].identifier - commitments[index].identifier;
+        if(state[INDEX] != (short) 0) {
+            numeratorAcc = identifiers[0];
+            denominatorAcc = identifiers[0] - identifiers[state[INDEX]];
             j = 1;
         } else {
-            numeratorAcc = commitments[1].identifier;
-            denominatorAcc = commitments[1].identifier - commitments[index].identifier;
+            numeratorAcc = identifiers[1];
+            denominatorAcc = identifiers[1] - identifiers[state[INDEX]];
             j = 2;
         }
 
-        for(; j < storedCommitments; ++j) {
-            if(j == index) {
+        for(; j < state[STORED]; ++j) {
+            if(j == state[INDEX]) {
                 continue;
             }
-            numeratorAcc *= commitments[j].identifier;
-            denominatorAcc *= commitments[j].identifier - commitments[index].identifier;
+            numeratorAcc *= identifiers[j];
+            denominatorAcc *= identifiers[j] - identifiers[state[INDEX]];
         }
+        BigNat numerator = leaseScalar(NUMERATOR);
+        BigNat denominator = leaseScalar(DENOMINATOR);
         numerator.setSize((short) 4);
         numerator.setValue(numeratorAcc);
         if(denominatorAcc < 0) {
             denominatorAcc *= -1;
+            BigNat tmp = leaseScalar(TMP);
             tmp.setSize((short) 4);
             tmp.setValue(denominatorAcc);
             denominator.copy(JCFROST.curve.rBN);
             denominator.subtract(tmp);
+            JCFROST.rm.release(TMP);
         } else {
             denominator.setSize((short) 4);
             denominator.setValue(denominatorAcc);
@@ -194,70 +890,77 @@ public class FrostSession {
         denominator.modInv(JCFROST.curve.rBN);
         lambda.clone(numerator);
         lambda.modMult(denominator, JCFROST.curve.rBN);
+        JCFROST.rm.release(NUMERATOR);
+        JCFROST.rm.release(DENOMINATOR);
+        return true;
     }
 
     private void computeChallenge(byte[] msg, short msgOffset, short msgLen) {
-        JCFROST.hasher.update(Consts.ZPAD, (short) 0, (short) Consts.ZPAD.length);
+        Profiler.setPhase(Consts.PHASE_CHALLENGE);
+        JCFROST.hasher.startZpad();
         groupCommitment.encode(ramArray, (short) 0, true);
         JCFROST.hasher.update(ramArray, (short) 0, (short) 33);
-        JCFROST.groupPublic.encode(ramArray, (short) 0, true);
-        JCFROST.hasher.update(ramArray, (short) 0, (short) 33);
+        JCFROST.hasher.update(JCFROST.groupKey, (short) 0, (short) 33);
         JCFROST.hasher.update(msg, msgOffset, msgLen);
         JCFROST.hasher.hash_to_field_internal(Consts.H2_TAG, challenge);
     }
 
-    private void computeBindingFactors(byte[] msg, short msgOffset, short msgLen) {
-        groupPublic.encode(rhoBuffer, (short) 0, true);
-
-        JCFROST.hasher.h4(msg, msgOffset, msgLen, rhoBuffer, (short) 33);
-
-        JCFROST.hasher.update(Consts.CONTEXT_STRING, (short) 0, (short) Consts.CONTEXT_STRING.length);
-        JCFROST.hasher.update(Consts.H5_TAG, (short) 0, (short) Consts.H5_TAG.length);
-        for(short j = 0; j < storedCommitments; ++j) {
-            Util.arrayFillNonAtomic(ramArray, (short) 0, (short) 31, (byte) 0); // TODO remove if zeroed array can be ensured
-            ramArray[31] = commitments[j].identifier;
-            JCFROST.hasher.update(ramArray, (short) 0, (short) 32);
-            if(POINT_SIZE == 65) {
-                commitments[j].hiding[0] = (byte) ((short) ((commitments[j].hiding[64] & 0xff) % 2) == 0x00 ? 2 : 3);
-                JCFROST.hasher.update(commitments[j].hiding, (short) 0, (short) 33);
-                commitments[j].hiding[0] = (byte) 0x04;
-                commitments[j].binding[0] = (byte) ((short) ((commitments[j].binding[64] & 0xff) % 2) == 0x00 ? 2 : 3);
-                JCFROST.hasher.update(commitments[j].binding, (short) 0, (short) 33);
-                commitments[j].binding[0] = (byte) 0x04;
-            } else {
-                JCFROST.hasher.update(commitments[j].hiding, (short) 0, (short) 33);
-                JCFROST.hasher.update(commitments[j].binding, (short) 0, (short) 33);
-            }
-        }
-        JCFROST.hasher.doFinal(ramArray, (short) 0, (short) 0, rhoBuffer, (short) 65);
-
-        Util.arrayFillNonAtomic(rhoBuffer, (short) 97, (short) 31, (byte) 0);
-        for(short j = 0; j < storedCommitments; ++j) {
-            rhoBuffer[128] = commitments[j].identifier;
+    /**
+     * Compute binding factors of all stored commitments. Expects group key || H4 || H5 in rhoBuffer.
+     */
+    private void computeBindingFactors() {
+        Profiler.setPhase(Consts.PHASE_BINDING_FACTORS);
+        Util.arrayFillNonAtomic(rhoBuffer, (short) 97, (short) 30, (byte) 0);
+        for(short j = 0; j < state[STORED]; ++j) {
+            Util.setShort(rhoBuffer, (short) 127, identifiers[j]);
             JCFROST.hasher.h1(rhoBuffer, (short) 0, (short) rhoBuffer.length, bindingFactors[j]);
         }
     }
 
     private void computeGroupCommitment() {
-        tmpPoint.decode(commitments[0].binding, (short) 0, POINT_SIZE);
-        tmpPoint2.decode(commitments[0].hiding, (short) 0, POINT_SIZE);
+        Profiler.setPhase(Consts.PHASE_GROUP_COMMITMENT);
+        if(groupAccumulator != null) {
+            // Without hardware addition, sum in Jacobian coordinates so that only the final point is inverted
+            if(tripledScalars != null) {
+                // Without multiplication KA, binding commitments share a single pass over the binding factors
+                groupAccumulator.multiScalarMultiplication(bindingFactors, points, UNCOMPRESSED_POINT_SIZE, (short) (2 * UNCOMPRESSED_POINT_SIZE), state[STORED], tripledScalars);
+            } else {
+                groupAccumulator.setInfinity();
+                for(short j = 0; j < state[STORED]; ++j) {
+                    tmpPoint.decode(points, (short) (j * 2 * UNCOMPRESSED_POINT_SIZE + UNCOMPRESSED_POINT_SIZE), UNCOMPRESSED_POINT_SIZE);
+                    tmpPoint.multiplication(bindingFactors[j]);
+                    groupAccumulator.addAffine(tmpPoint);
+                }
+            }
+            for(short j = 0; j < state[STORED]; ++j) {
+                groupAccumulator.addAffine(points, (short) (j * 2 * UNCOMPRESSED_POINT_SIZE));
+            }
+            groupAccumulator.toAffine(groupCommitment);
+            return;
+        }
+        tmpPoint.decode(points, UNCOMPRESSED_POINT_SIZE, UNCOMPRESSED_POINT_SIZE);
+        tmpPoint2.decode(points, (short) 0, UNCOMPRESSED_POINT_SIZE);
         tmpPoint.multAndAdd(bindingFactors[0], tmpPoint2);
         groupCommitment.copy(tmpPoint);
-        for(short j = 1; j < storedCommitments; ++j) {
-            tmpPoint.decode(commitments[j].binding, (short) 0, POINT_SIZE);
-            tmpPoint2.decode(commitments[j].hiding, (short) 0, POINT_SIZE);
+        for(short j = 1; j < state[STORED]; ++j) {
+            short offset = (short) (j * 2 * UNCOMPRESSED_POINT_SIZE);
+            tmpPoint.decode(points, (short) (offset + UNCOMPRESSED_POINT_SIZE), UNCOMPRESSED_POINT_SIZE);
+            tmpPoint2.decode(points, offset, UNCOMPRESSED_POINT_SIZE);
             tmpPoint.multAndAdd(bindingFactors[j], tmpPoint2);
             groupCommitment.add(tmpPoint);
         }
     }
 
-    private void computeSignatureShare(byte[] output, short outputOffset) {
-        challenge.modMult(lambda, JCFROST.curve.rBN);
-        challenge.modMult(secret, JCFROST.curve.rBN);
+    private void computeSignatureShare(BigNat bindingFactor, byte[] output, short outputOffset) {
+        Profiler.setPhase(Consts.PHASE_SHARE);
+        challenge.modMult(lambda, JCFROST.curve.rBN); // lambda is already multiplied by the secret
+        BigNat tmp = leaseScalar(TMP);
         tmp.clone(bindingNonce);
-        tmp.modMult(bindingFactors[index], JCFROST.curve.rBN);
+        tmp.modMult(bindingFactor, JCFROST.curve.rBN);
         tmp.modAdd(hidingNonce, JCFROST.curve.rBN);
         tmp.modAdd(challenge, JCFROST.curve.rBN);
         tmp.copyToByteArray(output, outputOffset);
+        JCFROST.rm.release(TMP);
+        Profiler.setPhase(Consts.PHASE_OTHER);
     }
 }
@@ -2,20 +2,53 @@ package jcfrost;
 
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
+import javacard.security.CryptoException;
+import javacard.security.InitializedMessageDigest;
 import javacard.security.MessageDigest;
 import jcfrost.jcmathlib.*;
 
 public class HashToField {
-    private BigNat largeScalar = new BigNat((short) 48, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
-    private MessageDigest hasher = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
-    private byte[] hashBuffer = JCSystem.makeTransientByteArray((short) (3 * 32 + 1), JCSystem.CLEAR_ON_RESET);
+    private MessageDigest hasher = newDigest();
+    private byte[] hashBuffer = JCFROST.rm.memAlloc.allocateByteArray((short) (3 * 32 + 1), JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+    private byte[] foldBuffer = JCFROST.rm.memAlloc.allocateByteArray((short) 33, JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+
+    /**
+     * Create a SHA-256 digest that can be started from a precomputed intermediate state if the card supports it.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInitializedMessageDigestInstance(MessageDigest.ALG_SHA_256, false);
+        } catch (CryptoException e) {
+            return MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        }
+    }
+
+    /**
+     * Reset the digest and absorb ZPAD, which skips a compression if the intermediate state can be loaded.
+     */
+    public static void startZpad(MessageDigest digest) {
+        if(digest instanceof InitializedMessageDigest) {
+            ((InitializedMessageDigest) digest).setInitialDigest(Consts.ZPAD_STATE, (short) 0, (short) Consts.ZPAD_STATE.length,
+                    Consts.ZPAD_LENGTH, (short) 0, (short) Consts.ZPAD_LENGTH.length);
+        } else {
+            digest.reset();
+            digest.update(Consts.ZPAD, (short) 0, (short) Consts.ZPAD.length);
+            Profiler.count(Profiler.SHA_UPDATE);
+        }
+    }
+
+    public void startZpad() {
+        startZpad(hasher);
+    }
 
     public void update(byte[] data, short offset, short len) {
         hasher.update(data, offset, len);
+        Profiler.count(Profiler.SHA_UPDATE);
     }
 
     public void doFinal(byte[] data, short offset, short len, byte[] output, short outputOffset) {
         hasher.doFinal(data, offset, len, output, outputOffset);
+        Profiler.count(Profiler.SHA_FINAL);
     }
 
     public void h1(byte[] msg, short msgOffset, short msgLen, BigNat outputScalar) {
@@ -30,26 +63,35 @@ public class HashToField {
         hasher.update(Consts.CONTEXT_STRING, (short) 0, (short) Consts.CONTEXT_STRING.length);
         hasher.update(Consts.H4_TAG, (short) 0, (short) Consts.H4_TAG.length);
         hasher.doFinal(msg, msgOffset, msgLen, output, outputOffset);
+        Profiler.count(Profiler.SHA_UPDATE, (short) 2);
+        Profiler.count(Profiler.SHA_FINAL);
     }
 
     // hash_to_field https://datatracker.ietf.org/doc/draft-irtf-cfrg-hash-to-curve/
     public void hash_to_field(byte[] msg, short msgOffset, short msgLen, byte[] tag, BigNat outputScalar) {
-        hasher.update(Consts.ZPAD, (short) 0, (short) Consts.ZPAD.length);
+        startZpad(hasher);
         hasher.update(msg, msgOffset, msgLen);
+        Profiler.count(Profiler.SHA_UPDATE);
         hash_to_field_internal(tag, outputScalar);
     }
 
     public void hash_to_field_internal(byte[] tag, BigNat outputScalar) {
-        short L = 48;
+        hash_to_field_internal(hasher, tag, outputScalar);
+    }
+
+    /**
+     * Finish hash_to_field whose message was absorbed by the given digest and compute the rest in the internal one.
+     */
+    public void hash_to_field_internal(MessageDigest digest, byte[] tag, BigNat outputScalar) {
         short BLOCK = 32;
         // hashBuffer = b0 (BLOCK) || b1 (BLOCK) || b2 (BLOCK) || CONTEXT_STRING_LEN (BYTE)
 
         hashBuffer[(short) (3 * BLOCK)] = (byte) (Consts.CONTEXT_STRING.length + tag.length);
-        hasher.update(Consts.HELPER, (short) 0, (short) Consts.HELPER.length);
-        hasher.update(Consts.ZERO, (short) 0, (short) Consts.ZERO.length);
-        hasher.update(Consts.CONTEXT_STRING, (short) 0, (short) Consts.CONTEXT_STRING.length);
-        hasher.update(tag, (short) 0, (short) tag.length);
-        hasher.doFinal(hashBuffer, (short) (3 * BLOCK), (short) 1, hashBuffer, (short) 0);
+        digest.update(Consts.HELPER, (short) 0, (short) Consts.HELPER.length);
+        digest.update(Consts.ZERO, (short) 0, (short) Consts.ZERO.length);
+        digest.update(Consts.CONTEXT_STRING, (short) 0, (short) Consts.CONTEXT_STRING.length);
+        digest.update(tag, (short) 0, (short) tag.length);
+        digest.doFinal(hashBuffer, (short) (3 * BLOCK), (short) 1, hashBuffer, (short) 0);
 
         hasher.update(hashBuffer, (short) 0, BLOCK);
         hasher.update(Consts.ONE, (short) 0, (short) Consts.ONE.length);
@@ -67,10 +109,51 @@ public class HashToField {
         hasher.update(Consts.CONTEXT_STRING, (short) 0, (short) Consts.CONTEXT_STRING.length);
         hasher.update(tag, (short) 0, (short) tag.length);
         hasher.doFinal(hashBuffer, (short) (3 * BLOCK), (short) 1, hashBuffer, (short) (2 * BLOCK));
+        Profiler.count(Profiler.SHA_UPDATE, (short) 12);
+        Profiler.count(Profiler.SHA_FINAL, (short) 3);
 
         // take the first 48 B and compute mod r
-        largeScalar.fromByteArray(hashBuffer, BLOCK, L);
-        largeScalar.mod(JCFROST.curve.rBN);
-        outputScalar.copy(largeScalar);
+        reduce(hashBuffer, BLOCK, outputScalar);
+    }
+
+    /**
+     * Reduce a 48-byte big-endian number modulo the group order. The top 16 bytes are folded into the rest
+     * using 2^256 = 2^256 - r (mod r), which is much cheaper than the generic remainder division.
+     */
+    private void reduce(byte[] input, short offset, BigNat outputScalar) {
+        // foldBuffer = overflow byte || low 32 B
+        foldBuffer[0] = 0;
+        Util.arrayCopyNonAtomic(input, (short) (offset + 16), foldBuffer, (short) 1, (short) 32);
+        for(short i = 0; i < 16; ++i) {
+            multiplyAdd((short) (32 - i), (short) (input[(short) (offset + 15 - i)] & 0xff));
+        }
+        // the result is below 2^258, fold the overflow twice to get below 2^256
+        for(short i = 0; i < 2; ++i) {
+            short overflow = (short) (foldBuffer[0] & 0xff);
+            foldBuffer[0] = 0;
+            multiplyAdd((short) 32, overflow);
+        }
+        outputScalar.fromByteArray(foldBuffer, (short) 1, (short) 32);
+        if(!outputScalar.isLesser(JCFROST.curve.rBN)) {
+            outputScalar.subtract(JCFROST.curve.rBN);
+        }
+    }
+
+    /**
+     * Add ORDER_COMPLEMENT * multiplier to foldBuffer, aligning the lowest byte of the constant to the given index.
+     */
+    private void multiplyAdd(short last, short multiplier) {
+        short acc = 0;
+        short j = last;
+        for(short i = (short) (Consts.ORDER_COMPLEMENT.length - 1); i >= 0; --i, --j) {
+            acc += (short) ((short) (foldBuffer[j] & 0xff) + (short) (multiplier * (Consts.ORDER_COMPLEMENT[i] & 0xff)));
+            foldBuffer[j] = (byte) acc;
+            acc = (short) ((acc >> 8) & 0xff);
+        }
+        for(; acc != 0 && j >= 0; --j) {
+            acc += (short) (foldBuffer[j] & 0xff);
+            foldBuffer[j] = (byte) acc;
+            acc = (short) ((acc >> 8) & 0xff);
+        }
     }
 }
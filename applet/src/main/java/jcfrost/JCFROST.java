@@ -2,24 +2,42 @@ package jcfrost;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.ExtendedLength;
 import jcfrost.jcmathlib.*;
 
-public class JCFROST extends Applet {
-    public final static short CARD_TYPE = OperationSupport.SIMULATOR;
+public class JCFROST extends Applet implements ExtendedLength {
+    public final static short CARD_TYPE = OperationSupport.SIMULATOR; // default profile, see install parameters
     public final static boolean DEBUG = true;
-    public final static short POINT_SIZE = 65;
+    public final static boolean PROFILE = false; // count expensive operations of signing phases, see INS_PROFILE
+    // Size of points received from and sent to the host; points are kept uncompressed on the card
+    public final static short POINT_SIZE = 33;
+    public final static short UNCOMPRESSED_POINT_SIZE = 65;
     public final static byte[] DEBUG_RANDOMNESS = new byte[64];
     public static short DEBUG_RANDOMNESS_OFFSET = 0;
 
     public static ResourceManager rm;
     public static ECCurve curve;
     public static HashToField hasher;
+    public static NoncePool pool;
+    public static LambdaCache lambdaCache;
 
-    public static byte minParties, maxParties, identifier;
+    public static short minParties, maxParties, identifier;
+    public static short capacity; // maximal number of parties in a stored commitment list
+    public static byte sessionCount;
+    public static short cardType;
+    public static byte allocatorPolicy;
+    public static byte nonceMemoryType; // JCSystem memory type of the nonces of signing sessions
+    public static byte listMemoryType; // JCSystem memory type of stored commitment lists, follows allocatorPolicy
+    public static byte disabledEngines; // CAPABILITY_EC_* engines not used even if probing finds them
+    public static boolean profiling; // PROFILE or enabled by install parameters
     public static BigNat secret;
     public static ECPoint groupPublic;
+    public static byte[] groupKey; // compressed group public key
 
-    private FrostSession frost;
+    public static FrostSession[] sessions;
+
+    private short[] memoryUsage; // RAM || EEPROM bytes allocated by each component
+    private short[] availableMemory;
 
     private boolean initialized = false;
 
@@ -28,23 +46,99 @@ public class JCFROST extends Applet {
     }
 
     public JCFROST(byte[] buffer, short offset, byte length) {
-        OperationSupport.getInstance().setCard(CARD_TYPE);
+        parseInstallParameters(buffer, offset);
+        OperationSupport.getInstance().setCard(cardType);
         if(!OperationSupport.getInstance().DEFERRED_INITIALIZATION) {
             initialize();
         }
         register();
     }
 
+    /**
+     * Parse TLV-encoded application install parameters. Unknown tags are ignored.
+     */
+    private void parseInstallParameters(byte[] buffer, short offset) {
+        capacity = Consts.MAX_PARTIES;
+        sessionCount = Consts.MAX_SESSIONS;
+        cardType = CARD_TYPE;
+        allocatorPolicy = ObjectAllocator.POLICY_RAM;
+        nonceMemoryType = JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT;
+        disabledEngines = 0;
+        profiling = PROFILE;
+        offset += (short) (buffer[offset] + 1); // AID
+        offset += (short) (buffer[offset] + 1); // control info
+        short end = (short) (offset + 1 + (buffer[offset] & 0xff));
+        ++offset;
+        while(offset < end) {
+            if((short) (offset + 2) > end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            byte tag = buffer[offset];
+            short valueLength = (short) (buffer[(short) (offset + 1)] & 0xff);
+            if((short) (offset + 2 + valueLength) > end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            offset += 2;
+            if(tag == Consts.INSTALL_MAX_PARTIES) {
+                capacity = (short) (buffer[offset] & 0xff);
+                if(valueLength != 1 || capacity == 0 || capacity > Consts.MAX_CAPACITY) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+            } else if(tag == Consts.INSTALL_CARD_TYPE) {
+                if(valueLength != 2) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                cardType = Util.getShort(buffer, offset);
+                if(cardType < OperationSupport.SIMULATOR || cardType > OperationSupport.SECORA) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+            } else if(tag == Consts.INSTALL_ALLOCATOR) {
+                if(valueLength != 1 || buffer[offset] < ObjectAllocator.POLICY_RAM || buffer[offset] > ObjectAllocator.POLICY_EEPROM) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                allocatorPolicy = buffer[offset];
+            } else if(tag == Consts.INSTALL_SESSIONS) {
+                if(valueLength != 1 || buffer[offset] < 1 || buffer[offset] > Consts.MAX_SESSIONS_LIMIT) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                sessionCount = buffer[offset];
+            } else if(tag == Consts.INSTALL_NONCE_STORAGE) {
+                if(valueLength != 1 || buffer[offset] < JCSystem.MEMORY_TYPE_PERSISTENT || buffer[offset] > JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                nonceMemoryType = buffer[offset];
+            } else if(tag == Consts.INSTALL_DISABLED_ENGINES) {
+                if(!DEBUG || valueLength != 1 || (buffer[offset] & ~(Consts.CAPABILITY_EC_HW_XY | Consts.CAPABILITY_EC_HW_X | Consts.CAPABILITY_EC_HW_ADD)) != 0) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                disabledEngines = buffer[offset];
+            } else if(tag == Consts.INSTALL_PROFILE) {
+                if(!DEBUG || valueLength != 1 || (buffer[offset] & 0xfe) != 0) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                profiling = buffer[offset] != 0;
+            }
+            offset += valueLength;
+        }
+    }
+
     public void process(APDU apdu) {
         if (selectingApplet())
             return;
 
-        if (apdu.getBuffer()[ISO7816.OFFSET_CLA] != Consts.CLA_JCFROST)
+        if ((byte) (apdu.getBuffer()[ISO7816.OFFSET_CLA] & 0xef) != Consts.CLA_JCFROST)
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 
         if(!initialized) {
             initialize();
         }
+        rm.releaseAll(); // helpers leased by a command interrupted by an exception
+        Profiler.setPhase(Consts.PHASE_OTHER);
+
+        byte ins = apdu.getBuffer()[ISO7816.OFFSET_INS];
+        if (ins != Consts.INS_COMMITMENTS && ins != Consts.INS_SIGN_STREAM && ins != Consts.INS_SIGN) {
+            FrostSession.chainAbort(); // any other instruction breaks an unfinished chain
+        }
 
         try {
             switch (apdu.getBuffer()[ISO7816.OFFSET_INS]) {
@@ -60,6 +154,21 @@ public class JCFROST extends Applet {
                 case Consts.INS_COMMITMENT:
                     commitment(apdu);
                     break;
+                case Consts.INS_COMMITMENTS:
+                    commitments(apdu);
+                    break;
+                case Consts.INS_PREPROCESS:
+                    preprocess(apdu);
+                    break;
+                case Consts.INS_SIGN_PREPROCESSED:
+                    signPreprocessed(apdu);
+                    break;
+                case Consts.INS_SIGN_STREAM:
+                    signStream(apdu);
+                    break;
+                case Consts.INS_SIGN_BATCH:
+                    signBatch(apdu);
+                    break;
                 case Consts.INS_SIGN:
                     sign(apdu);
                     break;
@@ -70,6 +179,15 @@ public class JCFROST extends Applet {
                 case Consts.INS_GROUP_KEY:
                     getGroupKey(apdu);
                     break;
+                case Consts.INS_CAPABILITIES:
+                    getCapabilities(apdu);
+                    break;
+                case Consts.INS_MEMORY:
+                    getMemory(apdu);
+                    break;
+                case Consts.INS_PROFILE:
+                    getProfile(apdu);
+                    break;
 
                 default:
                     ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
@@ -114,35 +232,85 @@ public class JCFROST extends Applet {
         if (initialized)
             ISOException.throwIt(Consts.E_ALREADY_INITIALIZED);
 
-        rm = new ResourceManager((short) 256);
+        memoryUsage = new short[(short) (2 * Consts.MEMORY_COMPONENTS)];
+        availableMemory = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+        disableEngines();
+        rm = new ResourceManager((short) 256, allocatorPolicy);
+        // only the RAM policy keeps the largest per-session arrays in RAM
+        listMemoryType = allocatorPolicy == ObjectAllocator.POLICY_RAM ? JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT : JCSystem.MEMORY_TYPE_PERSISTENT;
         curve = new ECCurve(SecP256k1.p, SecP256k1.a, SecP256k1.b, SecP256k1.G, SecP256k1.r, rm);
+        OperationSupport.getInstance().probe(rm, curve, SecP256k1.G2);
+        curve.updateEngines();
         rm.fixModSqMod(curve.rBN);
+        if(profiling) {
+            Profiler.enable(Consts.PHASES, rm);
+        }
+        recordMemory(Consts.MEMORY_RESOURCES);
         secret = new BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, rm);
         groupPublic = new ECPoint(curve);
+        groupKey = rm.memAlloc.allocateByteArray((short) 33, JCSystem.MEMORY_TYPE_PERSISTENT);
+        recordMemory(Consts.MEMORY_KEYS);
 
         hasher = new HashToField();
-        frost = new FrostSession();
+        recordMemory(Consts.MEMORY_HASHER);
+        pool = new NoncePool();
+        recordMemory(Consts.MEMORY_POOL);
+        lambdaCache = new LambdaCache();
+        recordMemory(Consts.MEMORY_CACHE);
+        FrostSession.initShared();
+        sessions = new FrostSession[sessionCount];
+        for(byte i = 0; i < sessionCount; ++i) {
+            sessions[i] = new FrostSession(i);
+        }
+        recordMemory(Consts.MEMORY_SESSIONS);
 
         initialized = true;
     }
 
+    /**
+     * Clear the engines disabled by install parameters from the probed profile, so that tests can force
+     * the software EC paths on cards and simulators that support the key agreements.
+     */
+    /**
+     * Offer all EC engines to probing except those disabled by install parameters, regardless of the card profile.
+     */
+    private void disableEngines() {
+        OperationSupport support = OperationSupport.getInstance();
+        support.EC_HW_XY = (disabledEngines & Consts.CAPABILITY_EC_HW_XY) == 0;
+        support.EC_HW_X = (disabledEngines & Consts.CAPABILITY_EC_HW_X) == 0;
+        support.EC_HW_ADD = (disabledEngines & Consts.CAPABILITY_EC_HW_ADD) == 0;
+    }
+
+    /**
+     * Store the allocator counters as the usage of the given component and start counting the next one.
+     */
+    private void recordMemory(byte component) {
+        memoryUsage[(short) (2 * component)] = rm.memAlloc.getAllocatedInRAM();
+        memoryUsage[(short) (2 * component + 1)] = rm.memAlloc.getAllocatedInEEPROM();
+        rm.memAlloc.resetAllocatorCounters();
+    }
+
     private void setup(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
-        minParties = apduBuffer[ISO7816.OFFSET_P1];
-        maxParties = apduBuffer[ISO7816.OFFSET_P2];
-        if(maxParties > Consts.MAX_PARTIES) {
+        minParties = (short) (apduBuffer[ISO7816.OFFSET_P1] & 0xff);
+        maxParties = (short) (apduBuffer[ISO7816.OFFSET_P2] & 0xff);
+        if(maxParties < 1 || maxParties > Consts.MAX_STREAM_PARTIES) {
             ISOException.throwIt(Consts.E_TOO_MANY_PARTIES);
         }
-        identifier = apduBuffer[ISO7816.OFFSET_CDATA];
-        secret.fromByteArray(apduBuffer, (short) (ISO7816.OFFSET_CDATA + 1), (short) 32);
-        groupPublic.decode(apduBuffer, (short) (ISO7816.OFFSET_CDATA + 33), POINT_SIZE);
+        identifier = Util.getShort(apduBuffer, ISO7816.OFFSET_CDATA);
+        lambdaCache.invalidate();
+        secret.fromByteArray(apduBuffer, (short) (ISO7816.OFFSET_CDATA + 2), (short) 32);
+        groupPublic.decode(apduBuffer, (short) (ISO7816.OFFSET_CDATA + 34), POINT_SIZE);
+        groupPublic.encode(apduBuffer, (short) 0, true); // encoding needs space for the uncompressed point
+        Util.arrayCopy(apduBuffer, (short) 0, groupKey, (short) 0, (short) 33);
+        FrostSession.precomputeLagrange();
         if (DEBUG) {
-            apduBuffer[0] = minParties;
-            apduBuffer[1] = maxParties;
-            apduBuffer[2] = identifier;
-            secret.copyToByteArray(apduBuffer, (short) 3);
-            groupPublic.encode(apduBuffer, (short) (3 + secret.length()), true);
-            apdu.setOutgoingAndSend((short) 0, (short) (3 + secret.length() + 33));
+            apduBuffer[0] = (byte) minParties;
+            apduBuffer[1] = (byte) maxParties;
+            Util.setShort(apduBuffer, (short) 2, identifier);
+            secret.copyToByteArray(apduBuffer, (short) 4);
+            Util.arrayCopyNonAtomic(groupKey, (short) 0, apduBuffer, (short) (4 + secret.length()), (short) 33);
+            apdu.setOutgoingAndSend((short) 0, (short) (4 + secret.length() + 33));
         } else {
             apdu.setOutgoing();
         }
@@ -150,30 +318,208 @@ public class JCFROST extends Applet {
 
     private void commit(APDU apdu) {
         if(DEBUG) {
-            short len = (short) (apdu.getBuffer()[ISO7816.OFFSET_P1] & 0xff);
-            DEBUG_RANDOMNESS_OFFSET = 0;
-            Util.arrayCopyNonAtomic(apdu.getBuffer(), ISO7816.OFFSET_CDATA, DEBUG_RANDOMNESS, (short) 0, len);
+            setDebugRandomness(apdu.getBuffer(), (short) (apdu.getBuffer()[ISO7816.OFFSET_P1] & 0xff));
+        }
+        apdu.setOutgoingAndSend((short) 0, session(apdu).commit(apdu.getBuffer(), (short) 0));
+    }
+
+    private void setDebugRandomness(byte[] apduBuffer, short len) {
+        DEBUG_RANDOMNESS_OFFSET = 0;
+        Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, DEBUG_RANDOMNESS, (short) 0, len);
+    }
+
+    private void preprocess(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        byte slot = apduBuffer[ISO7816.OFFSET_P1];
+        byte count = apduBuffer[ISO7816.OFFSET_P2];
+        if(slot < 0 || count < 0 || (short) (slot + count) > Consts.NONCE_POOL_SIZE) {
+            ISOException.throwIt(Consts.E_INVALID_SLOT);
+        }
+        short len = apdu.setIncomingAndReceive();
+        if(DEBUG && len > 0) {
+            setDebugRandomness(apduBuffer, len);
+        }
+        apdu.setOutgoing();
+        apdu.setOutgoingLength((short) (count * 66));
+        for(byte i = 0; i < count; ++i) {
+            apdu.sendBytes((short) 0, pool.fill((byte) (slot + i), apduBuffer, (short) 0));
         }
-        apdu.setOutgoingAndSend((short) 0, frost.commit(apdu.getBuffer(), (short) 0));
     }
 
     private void commitment(APDU apdu) {
-        frost.commitment(apdu.getBuffer()[ISO7816.OFFSET_P1], apdu.getBuffer(), ISO7816.OFFSET_CDATA);
+        byte[] apduBuffer = apdu.getBuffer();
+        session(apdu).commitment(Util.getShort(apduBuffer, ISO7816.OFFSET_CDATA), apduBuffer, (short) (ISO7816.OFFSET_CDATA + 2));
+    }
+
+    private void commitments(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        FrostSession frost = session(apdu);
+        frost.commitmentsBegin();
+        short len = apdu.setIncomingAndReceive();
+        short offset = apdu.getOffsetCdata();
+        while(len > 0) {
+            frost.commitments(apduBuffer, offset, len);
+            len = apdu.receiveBytes(offset);
+        }
+        if(!apdu.isCommandChainingCLA()) {
+            frost.commitmentsEnd();
+        }
     }
 
     private void sign(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
-        frost.sign(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer[ISO7816.OFFSET_P1], apduBuffer, (short) 0);
+        FrostSession frost = session(apdu);
+        byte mode = apduBuffer[ISO7816.OFFSET_P1];
+        if(mode == Consts.SIGN_SINGLE || mode == Consts.SIGN_PREHASHED) {
+            if(apdu.isCommandChainingCLA()) {
+                ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+            }
+            short len = receiveAll(apdu);
+            if(mode == Consts.SIGN_PREHASHED && len != 32) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            frost.sign(apduBuffer, apdu.getOffsetCdata(), len, apduBuffer, (short) 0);
+            apdu.setOutgoingAndSend((short) 0, (short) 32);
+            return;
+        }
+        if(mode != Consts.SIGN_FIRST_PASS && mode != Consts.SIGN_SECOND_PASS) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        frost.signBegin(mode);
+        short len = apdu.setIncomingAndReceive();
+        short offset = apdu.getOffsetCdata();
+        while(len > 0) {
+            frost.signUpdate(mode, apduBuffer, offset, len);
+            len = apdu.receiveBytes(offset);
+        }
+        if(!apdu.isCommandChainingCLA()) {
+            apdu.setOutgoingAndSend((short) 0, frost.signEnd(mode, apduBuffer, (short) 0));
+        }
+    }
+
+    /**
+     * Receive the whole data of an (extended) APDU into the APDU buffer.
+     * Data that does not fit into the APDU buffer is rejected with SW_WRONG_LENGTH.
+     * @return length of the data
+     */
+    private short receiveAll(APDU apdu) {
+        short received = apdu.setIncomingAndReceive();
+        short offset = apdu.getOffsetCdata();
+        if(apdu.getIncomingLength() > (short) (apdu.getBuffer().length - offset)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        while(received < apdu.getIncomingLength()) {
+            received += apdu.receiveBytes((short) (offset + received));
+        }
+        return received;
+    }
+
+    private void signPreprocessed(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        short len = receiveAll(apdu);
+        if(len < 1) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short offset = apdu.getOffsetCdata();
+        session(apdu).signPreprocessed(apduBuffer[offset], apduBuffer, (short) (offset + 1), (short) (len - 1), apduBuffer, (short) 0);
         apdu.setOutgoingAndSend((short) 0, (short) 32);
     }
 
+    private void signBatch(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        short len = receiveAll(apdu);
+        short count = session(apdu).signBatch(apduBuffer, apdu.getOffsetCdata(), len, apduBuffer, (short) 0);
+        apdu.setOutgoingAndSend((short) 0, (short) (count * 32));
+    }
+
+    private void signStream(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        FrostSession frost = session(apdu);
+        frost.streamBegin(apduBuffer[ISO7816.OFFSET_P1]);
+        short len = apdu.setIncomingAndReceive();
+        short offset = apdu.getOffsetCdata();
+        while(len > 0) {
+            frost.streamUpdate(apduBuffer, offset, len);
+            len = apdu.receiveBytes(offset);
+        }
+        if(!apdu.isCommandChainingCLA()) {
+            apdu.setOutgoingAndSend((short) 0, frost.streamEnd(apduBuffer, (short) 0));
+        }
+    }
+
     private void reset(APDU apdu) {
-        frost.reset();
+        session(apdu).reset();
         apdu.setOutgoing();
     }
 
+    private FrostSession session(APDU apdu) {
+        byte sessionId = apdu.getBuffer()[ISO7816.OFFSET_P2];
+        if(sessionId < 0 || sessionId >= sessionCount) {
+            ISOException.throwIt(Consts.E_INVALID_SESSION);
+        }
+        return sessions[sessionId];
+    }
+
     private void getGroupKey(APDU apdu) {
-        short len = groupPublic.encode(apdu.getBuffer(), (short) 0, true);
-        apdu.setOutgoingAndSend((short) 0, len);
+        Util.arrayCopyNonAtomic(groupKey, (short) 0, apdu.getBuffer(), (short) 0, (short) 33);
+        apdu.setOutgoingAndSend((short) 0, (short) 33);
+    }
+
+    /**
+     * Return the card profile and the bitmap of engines selected by probing at initialization.
+     */
+    private void getCapabilities(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        OperationSupport support = OperationSupport.getInstance();
+        short capabilities = 0;
+        if(support.EC_HW_XY) {
+            capabilities |= Consts.CAPABILITY_EC_HW_XY;
+        }
+        if(support.EC_HW_X) {
+            capabilities |= Consts.CAPABILITY_EC_HW_X;
+        }
+        if(support.EC_HW_ADD) {
+            capabilities |= Consts.CAPABILITY_EC_HW_ADD;
+        }
+        if(support.EC_SW_DOUBLE) {
+            capabilities |= Consts.CAPABILITY_EC_SW_DOUBLE;
+        }
+        if(support.RSA_SQ) {
+            capabilities |= Consts.CAPABILITY_RSA_SQ;
+        }
+        if(support.RSA_PUB) {
+            capabilities |= Consts.CAPABILITY_RSA_PUB;
+        }
+        Util.setShort(apduBuffer, (short) 0, cardType);
+        Util.setShort(apduBuffer, (short) 2, capabilities);
+        apdu.setOutgoingAndSend((short) 0, (short) 4);
+    }
+
+    /**
+     * Return RAM and EEPROM bytes allocated by each component followed by the available memory
+     * of persistent, reset-cleared and deselect-cleared types as 4-byte integers.
+     */
+    private void getMemory(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        short offset = 0;
+        for(short i = 0; i < (short) (2 * Consts.MEMORY_COMPONENTS); ++i) {
+            offset = Util.setShort(apduBuffer, offset, memoryUsage[i]);
+        }
+        for(byte memoryType = JCSystem.MEMORY_TYPE_PERSISTENT; memoryType <= JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT; ++memoryType) {
+            JCSystem.getAvailableMemory(availableMemory, (short) 0, memoryType);
+            offset = Util.setShort(apduBuffer, offset, availableMemory[0]);
+            offset = Util.setShort(apduBuffer, offset, availableMemory[1]);
+        }
+        apdu.setOutgoingAndSend((short) 0, offset);
+    }
+
+    /**
+     * Return operation counters of each signing phase accumulated since the previous call and reset them.
+     */
+    private void getProfile(APDU apdu) {
+        if(!Profiler.isEnabled()) {
+            ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+        apdu.setOutgoingAndSend((short) 0, Profiler.dump(apdu.getBuffer(), (short) 0));
     }
 }
@@ -0,0 +1,86 @@
+package jcfrost;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import jcfrost.jcmathlib.*;
+
+/**
+ * Persistent cache of the card's Lagrange coefficient keyed by the bitmap of participating identifiers.
+ * Only signer sets with identifiers in 1..capacity can be cached. Entries are evicted in LRU order.
+ */
+public class LambdaCache {
+    private final static short CACHE_SIZE = 4;
+    private final static short COUNTER = CACHE_SIZE;
+
+    private final short keyLength = (short) ((short) (JCFROST.capacity + 7) / 8);
+    private byte[] valid = JCFROST.rm.memAlloc.allocateByteArray(CACHE_SIZE, JCSystem.MEMORY_TYPE_PERSISTENT);
+    private byte[] keys = JCFROST.rm.memAlloc.allocateByteArray((short) (CACHE_SIZE * keyLength), JCSystem.MEMORY_TYPE_PERSISTENT);
+    private byte[] lambdas = JCFROST.rm.memAlloc.allocateByteArray((short) (CACHE_SIZE * 32), JCSystem.MEMORY_TYPE_PERSISTENT);
+
+    // Usage stamps of entries followed by the stamp counter, kept in RAM as they change on every hit
+    private short[] stamps = JCFROST.rm.memAlloc.allocateShortArray((short) (CACHE_SIZE + 1), JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+    // Key of the last lookup; the last byte is set when the signer set can be cached
+    private byte[] key = JCFROST.rm.memAlloc.allocateByteArray((short) (keyLength + 1), JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+
+    /**
+     * Look up the Lagrange coefficient for the given signer set. The key is remembered for a following store.
+     * @return true if the coefficient was found and copied to output
+     */
+    public boolean lookup(short[] identifiers, short count, BigNat output) {
+        Util.arrayFillNonAtomic(key, (short) 0, (short) key.length, (byte) 0);
+        for(short i = 0; i < count; ++i) {
+            short bit = (short) (identifiers[i] - 1);
+            if(bit < 0 || bit >= JCFROST.capacity) {
+                return false;
+            }
+            key[(short) (bit >> 3)] |= (byte) (1 << (bit & 0x07));
+        }
+        key[keyLength] = 1;
+
+        for(short i = 0; i < CACHE_SIZE; ++i) {
+            if(valid[i] != 0 && Util.arrayCompare(keys, (short) (i * keyLength), key, (short) 0, keyLength) == 0) {
+                touch(i);
+                output.fromByteArray(lambdas, (short) (i * 32), (short) 32);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Store the Lagrange coefficient for the signer set of the last lookup, replacing the least recently used entry.
+     */
+    public void store(BigNat lambda) {
+        if(key[keyLength] == 0) {
+            return;
+        }
+        short victim = 0;
+        for(short i = 0; i < CACHE_SIZE; ++i) {
+            if(valid[i] == 0) {
+                victim = i;
+                break;
+            }
+            if(stamps[i] < stamps[victim]) {
+                victim = i;
+            }
+        }
+        valid[victim] = 0;
+        Util.arrayCopy(key, (short) 0, keys, (short) (victim * keyLength), keyLength);
+        lambda.prependZeros((short) 32, lambdas, (short) (victim * 32));
+        valid[victim] = 1;
+        touch(victim);
+    }
+
+    public void invalidate() {
+        Util.arrayFillNonAtomic(valid, (short) 0, CACHE_SIZE, (byte) 0);
+    }
+
+    private void touch(short entry) {
+        if(stamps[COUNTER] == Short.MAX_VALUE) {
+            for(short i = 0; i <= CACHE_SIZE; ++i) {
+                stamps[i] = 0;
+            }
+        }
+        stamps[entry] = ++stamps[COUNTER];
+    }
+}
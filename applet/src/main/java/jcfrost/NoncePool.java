@@ -0,0 +1,86 @@
+package jcfrost;
+
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.RandomData;
+import jcfrost.jcmathlib.*;
+
+import static jcfrost.JCFROST.UNCOMPRESSED_POINT_SIZE;
+
+/**
+ * Pool of preprocessed nonce pairs that can be consumed by preprocessed signing.
+ * Each slot holds hiding || binding nonce and the corresponding commitments, and can be used only once.
+ */
+public class NoncePool {
+    // private RandomData rng = RandomData.getInstance(RandomData.ALG_KEYGENERATION);
+    private RandomData rng = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+
+    private final static byte SLOT_EMPTY = (byte) 0;
+    private final static byte SLOT_READY = (byte) 1;
+
+    private byte[] slotState = JCFROST.rm.memAlloc.allocateByteArray(Consts.NONCE_POOL_SIZE, JCSystem.MEMORY_TYPE_PERSISTENT);
+    private byte[] nonces = JCFROST.rm.memAlloc.allocateByteArray((short) (Consts.NONCE_POOL_SIZE * 2 * 32), JCSystem.MEMORY_TYPE_PERSISTENT);
+    private byte[] commitments = JCFROST.rm.memAlloc.allocateByteArray((short) (Consts.NONCE_POOL_SIZE * 2 * UNCOMPRESSED_POINT_SIZE), JCSystem.MEMORY_TYPE_PERSISTENT);
+
+    // Computation-only
+    private byte[] nonceBuffer = JCFROST.rm.memAlloc.allocateByteArray((short) (2 * 32), JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+    private BigNat nonce = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
+    private ECPoint point = new ECPoint(JCFROST.curve);
+
+    /**
+     * Generate a fresh nonce pair into the given slot and output its compressed commitments.
+     */
+    public short fill(byte slot, byte[] output, short offset) {
+        checkSlot(slot);
+        slotState[slot] = SLOT_EMPTY;
+        short nonceOffset = (short) (slot * 2 * 32);
+        short commitmentOffset = (short) (slot * 2 * UNCOMPRESSED_POINT_SIZE);
+        for(short i = 0; i < (short) 2; ++i) {
+            nonceGenerate(nonce);
+            nonce.copyToByteArray(nonces, (short) (nonceOffset + i * 32));
+            point.mulGenerator(nonce);
+            point.encode(commitments, (short) (commitmentOffset + i * UNCOMPRESSED_POINT_SIZE), false);
+            point.encode(output, (short) (offset + i * 33), true);
+        }
+        slotState[slot] = SLOT_READY;
+        return (short) 66;
+    }
+
+    /**
+     * Check that the slot commitments match the supplied ones, invalidate the slot, and load its nonces.
+     */
+    public void consume(byte slot, byte[] hiding, short hidingOffset, byte[] binding, short bindingOffset, BigNat hidingNonce, BigNat bindingNonce) {
+        checkSlot(slot);
+        if(slotState[slot] != SLOT_READY) {
+            ISOException.throwIt(Consts.E_SLOT_EMPTY);
+        }
+        short commitmentOffset = (short) (slot * 2 * UNCOMPRESSED_POINT_SIZE);
+        if(Util.arrayCompare(commitments, commitmentOffset, hiding, hidingOffset, UNCOMPRESSED_POINT_SIZE) != 0
+                || Util.arrayCompare(commitments, (short) (commitmentOffset + UNCOMPRESSED_POINT_SIZE), binding, bindingOffset, UNCOMPRESSED_POINT_SIZE) != 0) {
+            ISOException.throwIt(Consts.E_COMMITMENT_MISMATCH);
+        }
+        slotState[slot] = SLOT_EMPTY;
+        short nonceOffset = (short) (slot * 2 * 32);
+        hidingNonce.fromByteArray(nonces, nonceOffset, (short) 32);
+        bindingNonce.fromByteArray(nonces, (short) (nonceOffset + 32), (short) 32);
+    }
+
+    public void nonceGenerate(BigNat outputNonce) {
+        if(JCFROST.DEBUG) {
+            Util.arrayCopyNonAtomic(JCFROST.DEBUG_RANDOMNESS, JCFROST.DEBUG_RANDOMNESS_OFFSET, nonceBuffer, (short) 0, (short) 32);
+            JCFROST.DEBUG_RANDOMNESS_OFFSET = (short) ((short) (JCFROST.DEBUG_RANDOMNESS_OFFSET + 32) % JCFROST.DEBUG_RANDOMNESS.length);
+        } else {
+            rng.generateData(nonceBuffer, (short) 0, (short) 32);
+            // rng.nextBytes(nonceBuffer, (short) 0, (short) 32);
+        }
+        JCFROST.secret.copyToByteArray(nonceBuffer, (short) 32); // the secret is not kept in RAM between commands
+        JCFROST.hasher.h3(nonceBuffer, (short) 0, (short) nonceBuffer.length, outputNonce);
+    }
+
+    private void checkSlot(byte slot) {
+        if(slot < 0 || slot >= Consts.NONCE_POOL_SIZE) {
+            ISOException.throwIt(Consts.E_INVALID_SLOT);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package jcfrost;
 
+import javacard.framework.CardRuntimeException;
+import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
@@ -39,8 +41,8 @@ public class jcmathlib {
          * Greatest common divisor of this BigNat with other BigNat. Result is stored into this.
          */
         public void gcd(BigNat other) {
-            BigNat tmp = rm.BN_A;
-            BigNat tmpOther = rm.BN_B;
+            BigNat tmp = rm.lease(ObjectAllocator.BN_A);
+            BigNat tmpOther = rm.lease(ObjectAllocator.BN_B);
 
 
             tmpOther.clone(other);
@@ -53,18 +55,21 @@ public class jcmathlib {
                 clone(tmp);
             }
 
+            rm.release(ObjectAllocator.BN_A);
+            rm.release(ObjectAllocator.BN_B);
         }
 
         /**
          * Decides whether the arguments are co-prime or not.
          */
         public boolean isCoprime(BigNat a, BigNat b) {
-            BigNat tmp = rm.BN_C;
+            BigNat tmp = rm.lease(ObjectAllocator.BN_C);
 
             tmp.clone(a);
 
             tmp.gcd(b);
             boolean result = tmp.isOne();
+            rm.release(ObjectAllocator.BN_C);
             return result;
         }
 
@@ -89,6 +94,7 @@ public class jcmathlib {
             Util.arrayFillNonAtomic(resultBuffer, (short) 0, offset, (byte) 0x00);
             copyToByteArray(resultBuffer, offset);
             short len = rm.sqCiph.doFinal(resultBuffer, (short) 0, rm.MAX_SQ_LENGTH, resultBuffer, (short) 0);
+            Profiler.count(Profiler.RSA);
             if (len != rm.MAX_SQ_LENGTH) {
                 if (OperationSupport.getInstance().RSA_PREPEND_ZEROS) {
                     Util.arrayCopyNonAtomic(resultBuffer, (short) 0, resultBuffer, (short) (rm.MAX_SQ_LENGTH - len), len);
@@ -151,12 +157,13 @@ public class jcmathlib {
          * Negate current BigNat modulo provided modulus.
          */
         public void modNegate(BigNat mod) {
-            BigNat tmp = rm.BN_B;
+            BigNat tmp = rm.lease(ObjectAllocator.BN_B);
 
             tmp.clone(mod);
             tmp.subtract(this);
             setSize(mod.length());
             copy(tmp);
+            rm.release(ObjectAllocator.BN_B);
         }
 
         /**
@@ -200,6 +207,7 @@ public class jcmathlib {
 
             prependZeros(modLength, tmpBuffer, (short) 0);
             short len = rm.modSqCiph.doFinal(tmpBuffer, (short) 0, modLength, tmpBuffer, (short) 0);
+            Profiler.count(Profiler.RSA);
 
             if (len != rm.MAX_EXP_LENGTH) {
                 if (OperationSupport.getInstance().RSA_PREPEND_ZEROS) {
@@ -284,6 +292,7 @@ public class jcmathlib {
 
             prependZeros(modLength, tmpBuffer, (short) 0);
             short len = rm.expCiph.doFinal(tmpBuffer, (short) 0, modLength, tmpBuffer, (short) 0);
+            Profiler.count(Profiler.RSA);
 
             if (len != rm.MAX_EXP_LENGTH) {
                 if (OperationSupport.getInstance().RSA_PREPEND_ZEROS) {
@@ -309,12 +318,48 @@ public class jcmathlib {
          * Computes modular inversion. The result is stored into this.
          */
         public void modInv(BigNat mod) {
-            BigNat tmp = rm.BN_B;
+            BigNat tmp = rm.lease(ObjectAllocator.BN_B);
             tmp.clone(mod);
             tmp.decrement();
             tmp.decrement();
 
             modExp(tmp, mod);
+            rm.release(ObjectAllocator.BN_B);
+        }
+
+        /**
+         * Computes modular inversions of values[0..count) using a single inversion and 3(count - 1) multiplications
+         * (Montgomery's trick). The results are stored into values. All values must be invertible.
+         *
+         * @param values   values to be inverted
+         * @param products scratch BigNats of at least count elements for the prefix products
+         * @param count    number of values
+         * @param mod      modulus
+         */
+        public static void modInvBatch(BigNat[] values, BigNat[] products, short count, BigNat mod) {
+            if (count <= 0) {
+                return;
+            }
+            ResourceManager rm = values[0].rm;
+            BigNat inverse = rm.lease(ObjectAllocator.BN_C);
+            BigNat tmp = rm.lease(ObjectAllocator.BN_A);
+
+            products[0].clone(values[0]);
+            for (short i = 1; i < count; i++) {
+                products[i].clone(products[(short) (i - 1)]);
+                products[i].modMult(values[i], mod);
+            }
+            inverse.clone(products[(short) (count - 1)]);
+            inverse.modInv(mod);
+            for (short i = (short) (count - 1); i > 0; i--) {
+                tmp.clone(inverse);
+                tmp.modMult(products[(short) (i - 1)], mod);
+                inverse.modMult(values[i], mod);
+                values[i].clone(tmp);
+            }
+            values[0].clone(inverse);
+            rm.release(ObjectAllocator.BN_C);
+            rm.release(ObjectAllocator.BN_A);
         }
 
         /**
@@ -381,10 +426,10 @@ public class jcmathlib {
          * the two roots) is stored to this.
          */
         public void modSqrt(BigNat p) {
-            BigNat s = rm.BN_A;
+            BigNat s = rm.lease(ObjectAllocator.BN_A);
             BigNat exp = rm.BN_A;
-            BigNat p1 = rm.BN_B;
-            BigNat q = rm.BN_C;
+            BigNat p1 = rm.lease(ObjectAllocator.BN_B);
+            BigNat q = rm.lease(ObjectAllocator.BN_C);
             BigNat tmp = rm.BN_D;
             BigNat z = rm.BN_E;
 
@@ -432,6 +477,22 @@ public class jcmathlib {
 
             mod(p);
             modExp(exp, p);
+            rm.release(ObjectAllocator.BN_A);
+            rm.release(ObjectAllocator.BN_B);
+            rm.release(ObjectAllocator.BN_C);
+        }
+
+        /**
+         * Computes square root of this modulo prime p as this^sqrtExp, where sqrtExp = (p + 1) / 4 is precomputed
+         * for p = 3 (mod 4). Falls back to the generic computation if sqrtExp is null. The result is stored to this.
+         */
+        public void modSqrt(BigNat p, BigNat sqrtExp) {
+            if (sqrtExp == null) {
+                modSqrt(p);
+                return;
+            }
+            mod(p);
+            modExp(sqrtExp, p);
         }
     }
 
@@ -621,8 +682,8 @@ public class jcmathlib {
             zero();
             value[(short) (value.length - 1)] = (byte) (newValue & DIGIT_MASK);
             value[(short) (value.length - 2)] = (byte) ((newValue >> 8) & DIGIT_MASK);
-            value[(short) (value.length - 3)] = (byte) ((newValue >> 8) & DIGIT_MASK);
-            value[(short) (value.length - 4)] = (byte) ((newValue >> 8) & DIGIT_MASK);
+            value[(short) (value.length - 3)] = (byte) ((newValue >> 16) & DIGIT_MASK);
+            value[(short) (value.length - 4)] = (byte) ((newValue >> 24) & DIGIT_MASK);
         }
 
         /**
@@ -693,6 +754,17 @@ public class jcmathlib {
             return value[(short) (value.length - 1)] == (byte) 0x01;
         }
 
+        /**
+         * Test the given bit of this BigNat, bit 0 being the least significant one.
+         */
+        public boolean isBitSet(short bit) {
+            short index = (short) (value.length - 1 - (bit >> 3));
+            if (index < offset) {
+                return false;
+            }
+            return (byte) (value[index] & (byte) (1 << (bit & 0x07))) != (byte) 0;
+        }
+
         /**
          * Check if stored BigNat is odd.
          */
@@ -1043,12 +1115,30 @@ public class jcmathlib {
 
         public byte[] p, a, b, G, r;
         public BigNat pBN, aBN, bBN, rBN;
+        // Exponent (p + 1) / 4 of the square root if p = 3 (mod 4), null otherwise
+        public BigNat sqrtExpBN;
 
 
         public KeyPair disposablePair;
         public ECPrivateKey disposablePriv;
         public ECPublicKey disposablePub;
 
+        // Private key bound to the base point G, never re-pointed by other operations. Transient where supported, in
+        // which case the flag is cleared together with the key and its domain parameters are set again on next use.
+        private ECPrivateKey generatorPriv;
+        private byte[] generatorPrivReady;
+
+        // Fixed-base comb for G used when XY key agreement is not available
+        public static final short COMB_TEETH = 4;
+        // Table row holding -2^COMB_SPACING G, which cancels the initial value of the comb accumulator
+        static final short COMB_OFFSET_ROW = (short) (1 << COMB_TEETH);
+        public final short COMB_SPACING;
+        byte[] combTable;
+        byte[] combScalar;
+        JacobianPoint combAccumulator;
+        JacobianPoint combDummy;
+        JacobianPoint[] combTargets;
+
         /**
          * Creates new curve object from provided parameters. Parameters are not copied, the
          * arrays must not be changed.
@@ -1063,6 +1153,7 @@ public class jcmathlib {
             KEY_BIT_LENGTH = (short) (p.length * 8);
             POINT_SIZE = (short) G.length;
             COORD_SIZE = (short) ((short) (G.length - 1) / 2);
+            COMB_SPACING = (short) (KEY_BIT_LENGTH / COMB_TEETH);
 
             this.p = p;
             this.a = a;
@@ -1079,10 +1170,74 @@ public class jcmathlib {
             bBN.fromByteArray(b, (short) 0, (short) b.length);
             rBN = new BigNat(COORD_SIZE, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
             rBN.fromByteArray(r, (short) 0, (short) r.length);
+            if ((byte) (p[(short) (p.length - 1)] & 0x03) == (byte) 0x03) {
+                sqrtExpBN = new BigNat(COORD_SIZE, JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+                sqrtExpBN.fromByteArray(p, (short) 0, (short) p.length);
+                sqrtExpBN.shiftRight((short) 2);
+                sqrtExpBN.increment();
+            }
 
             disposablePair = newKeyPair(null);
             disposablePriv = (ECPrivateKey) disposablePair.getPrivate();
             disposablePub = (ECPublicKey) disposablePair.getPublic();
+
+            try {
+                generatorPriv = (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT, KEY_BIT_LENGTH, false);
+                generatorPrivReady = rm.memAlloc.allocateByteArray((short) 1, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+            } catch (CryptoException e) {
+                generatorPriv = (ECPrivateKey) newKeyPair(null).getPrivate();
+            }
+            updateEngines();
+        }
+
+        /**
+         * Precompute the comb table if the multiplication key agreement of rm is not XY. Call again after
+         * OperationSupport.probe, which may remove the key agreement.
+         */
+        public void updateEngines() {
+            if (combTable == null && (rm.ecMultKA == null || rm.ecMultKA.getAlgorithm() != KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY)) {
+                precomputeComb();
+            }
+        }
+
+        /**
+         * Precompute the comb table for G into persistent memory. Row {@code j} (1-based) holds the sum of
+         * 2^(i * COMB_SPACING) G over all bits i set in {@code j}, the last row holds -2^COMB_SPACING G.
+         * Rows are stored uncompressed and are read directly by the Jacobian arithmetic, so no key object is written.
+         */
+        private void precomputeComb() {
+            combTable = rm.memAlloc.allocateByteArray((short) (COMB_OFFSET_ROW * POINT_SIZE), JCSystem.MEMORY_TYPE_PERSISTENT);
+            combScalar = rm.memAlloc.allocateByteArray(COORD_SIZE, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+            combAccumulator = new JacobianPoint(this);
+            combDummy = new JacobianPoint(this);
+            combTargets = new JacobianPoint[]{combDummy, combAccumulator};
+
+            combAccumulator.setAffine(G, (short) 0);
+            for (short i = 0; i < COMB_TEETH; ++i) {
+                for (short j = 0; i != 0 && j < COMB_SPACING; ++j) {
+                    combAccumulator.makeDouble();
+                }
+                combAccumulator.toAffine(combTable, combRow((short) (1 << i)));
+            }
+            for (short row = 3; row < (short) (1 << COMB_TEETH); ++row) {
+                short low = (short) (row & -row);
+                if (low == row) {
+                    continue;
+                }
+                combAccumulator.setAffine(combTable, combRow((short) (row - low)));
+                combAccumulator.addAffine(combTable, combRow(low));
+                combAccumulator.toAffine(combTable, combRow(row));
+            }
+            combAccumulator.setAffine(combTable, combRow((short) 2));
+            combAccumulator.negate();
+            combAccumulator.toAffine(combTable, combRow(COMB_OFFSET_ROW));
+        }
+
+        /**
+         * Returns offset of the given comb table row.
+         */
+        short combRow(short row) {
+            return (short) ((short) (row - 1) * POINT_SIZE);
         }
 
         /**
@@ -1112,24 +1267,34 @@ public class jcmathlib {
                 privKey = (ECPrivateKey) keyPair.getPrivate();
             }
 
-            privKey.setFieldFP(p, (short) 0, (short) p.length);
-            privKey.setA(a, (short) 0, (short) a.length);
-            privKey.setB(b, (short) 0, (short) b.length);
-            privKey.setG(G, (short) 0, (short) G.length);
-            privKey.setR(r, (short) 0, (short) r.length);
-            privKey.setK((short) 1);
-
-            pubKey.setFieldFP(p, (short) 0, (short) p.length);
-            pubKey.setA(a, (short) 0, (short) a.length);
-            pubKey.setB(b, (short) 0, (short) b.length);
-            pubKey.setG(G, (short) 0, (short) G.length);
-            pubKey.setR(r, (short) 0, (short) r.length);
-            pubKey.setK((short) 1);
+            setDomainParameters(privKey);
+            setDomainParameters(pubKey);
 
             keyPair.genKeyPair();
 
             return keyPair;
         }
+
+        private void setDomainParameters(ECKey key) {
+            key.setFieldFP(p, (short) 0, (short) p.length);
+            key.setA(a, (short) 0, (short) a.length);
+            key.setB(b, (short) 0, (short) b.length);
+            key.setG(G, (short) 0, (short) G.length);
+            key.setR(r, (short) 0, (short) r.length);
+            key.setK((short) 1);
+        }
+
+        /**
+         * Returns the private key bound to G. Secret scalars set into it are not written to persistent memory
+         * if the card supports transient EC keys.
+         */
+        ECPrivateKey generatorKey() {
+            if (generatorPrivReady != null && generatorPrivReady[0] == 0) {
+                setDomainParameters(generatorPriv);
+                generatorPrivReady[0] = 1;
+            }
+            return generatorPriv;
+        }
     }
 
     /**
@@ -1205,6 +1370,7 @@ public class jcmathlib {
          */
         public void setW(byte[] buffer, short offset, short length) {
             point.setW(buffer, offset, length);
+            Profiler.count(Profiler.EEPROM_WRITE);
         }
 
         /**
@@ -1460,17 +1626,77 @@ public class jcmathlib {
         public void multiplication(BigNat scalar) {
             if (OperationSupport.getInstance().EC_SW_DOUBLE && scalar.equals(ResourceManager.TWO)) {
                 swDouble();
-            // } else if (rm.ecMultKA.getAlgorithm() == KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY) {
-            } else if (rm.ecMultKA.getAlgorithm() == (byte) 6) {
+            } else if (rm.ecMultKA.getAlgorithm() == KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY) {
                 multXY(scalar);
-            //} else if (rm.ecMultKA.getAlgorithm() == KeyAgreement.ALG_EC_SVDP_DH_PLAIN) {
-            } else if (rm.ecMultKA.getAlgorithm() == (byte) 3) {
+            } else if (rm.ecMultKA.getAlgorithm() == KeyAgreement.ALG_EC_SVDP_DH_PLAIN) {
                 multX(scalar);
             } else {
                 ISOException.throwIt(ReturnCodes.SW_OPERATION_NOT_SUPPORTED);
             }
         }
 
+        /**
+         * Set this point to scalar multiple of the curve generator G.
+         * Native XY KeyAgreement with the generator-bound key is used when available,
+         * otherwise the precomputed comb table of G is evaluated.
+         *
+         * @param scalar value of scalar for multiplication
+         */
+        public void mulGenerator(BigNat scalar) {
+            if (curve.combTable == null) {
+                byte[] pointBuffer = rm.POINT_ARRAY_B;
+
+                short len = scalar.copyToByteArray(pointBuffer, (short) 0);
+                ECPrivateKey key = curve.generatorKey();
+                key.setS(pointBuffer, (short) 0, len);
+                rm.ecMultKA.init(key);
+
+                len = rm.ecMultKA.generateSecret(curve.G, (short) 0, curve.POINT_SIZE, rm.POINT_ARRAY_A, (short) 0);
+                if (curve.generatorPrivReady == null) {
+                    Profiler.count(Profiler.EEPROM_WRITE);
+                }
+                Profiler.count(Profiler.KA_INIT);
+                Profiler.count(Profiler.KA_SECRET);
+                setW(rm.POINT_ARRAY_A, (short) 0, len);
+            } else {
+                combMultiplication(scalar);
+            }
+        }
+
+        /**
+         * Multiply G by provided scalar using the comb table. Intermediate values are kept in Jacobian
+         * coordinates. Stores the result into this point.
+         * <p>
+         * Every column performs one doubling and one addition regardless of the scalar: the accumulator starts
+         * at G instead of the point at infinity, which is cancelled by the -2^COMB_SPACING G row at the end,
+         * and a zero column adds G to a dummy point selected without a branch. The software field arithmetic
+         * (modular addition and subtraction, RSA-based multiplication, final inversion) is not guaranteed to be
+         * constant time, so timing of this fallback may still depend on the scalar on some cards.
+         *
+         * @param scalar value of scalar for multiplication
+         */
+        private void combMultiplication(BigNat scalar) {
+            byte[] scalarBytes = curve.combScalar;
+            JacobianPoint accumulator = curve.combAccumulator;
+
+            scalar.prependZeros(curve.COORD_SIZE, scalarBytes, (short) 0);
+            accumulator.setAffine(curve.G, (short) 0);
+            curve.combDummy.setAffine(curve.combTable, curve.combRow((short) 2));
+            for (short i = (short) (curve.COMB_SPACING - 1); i >= 0; --i) {
+                accumulator.makeDouble();
+                short row = 0;
+                for (short tooth = (short) (ECCurve.COMB_TEETH - 1); tooth >= 0; --tooth) {
+                    short bit = (short) (tooth * curve.COMB_SPACING + i);
+                    row = (short) ((row << 1) | ((scalarBytes[(short) (curve.COORD_SIZE - 1 - (bit >> 3))] >> (bit & 0x07)) & 1));
+                }
+                short nonZero = (short) (((short) (row | -row) >> 15) & 1);
+                curve.combTargets[nonZero].addAffine(curve.combTable, curve.combRow((short) (row | (nonZero ^ 1))));
+            }
+            accumulator.addAffine(curve.combTable, curve.combRow(ECCurve.COMB_OFFSET_ROW));
+            Util.arrayFillNonAtomic(scalarBytes, (short) 0, curve.COORD_SIZE, (byte) 0);
+            accumulator.toAffine(this);
+        }
+
         /**
          * Multiply this point by a given scalar and add another point to the result.
          *
@@ -1507,6 +1733,9 @@ public class jcmathlib {
 
             len = point.getW(pointBuffer, (short) 0);
             len = rm.ecAddKA.generateSecret(pointBuffer, (short) 0, len, outBuffer, outBufferOffset);
+            Profiler.count(Profiler.EEPROM_WRITE, (short) 2);
+            Profiler.count(Profiler.KA_INIT);
+            Profiler.count(Profiler.KA_SECRET);
             return len;
         }
 
@@ -1541,6 +1770,9 @@ public class jcmathlib {
 
             len = getW(pointBuffer, (short) 0);
             len = rm.ecMultKA.generateSecret(pointBuffer, (short) 0, len, outBuffer, outBufferOffset);
+            Profiler.count(Profiler.EEPROM_WRITE);
+            Profiler.count(Profiler.KA_INIT);
+            Profiler.count(Profiler.KA_SECRET);
             return len;
         }
 
@@ -1567,7 +1799,7 @@ public class jcmathlib {
             ySq.modMult(x, curve.pBN);
             ySq.modAdd(curve.bBN, curve.pBN);
             y1.clone(ySq);
-            y1.modSqrt(curve.pBN);
+            y1.modSqrt(curve.pBN, curve.sqrtExpBN);
 
             // Prepare for SignVerify
             getW(pointBuffer, (short) 0);
@@ -1583,6 +1815,7 @@ public class jcmathlib {
             len = scalar.copyToByteArray(resultBuffer, (short) 0);
             curve.disposablePriv.setS(resultBuffer, (short) 0, len);
             curve.disposablePub.setW(pointBuffer, (short) 0, curve.POINT_SIZE);
+            Profiler.count(Profiler.EEPROM_WRITE, (short) 4);
             if (!SignVerifyECDSA(curve.disposablePriv, curve.disposablePub, rm.verifyEcdsa, resultBuffer)) { // If verification fails, then pick the <x, y_2>
                 y2.clone(curve.pBN); // y_2 = p - y_1
                 y2.modSub(y1, curve.pBN);
@@ -1613,6 +1846,9 @@ public class jcmathlib {
 
             len = getW(pointBuffer, (short) 0);
             rm.ecMultKA.generateSecret(pointBuffer, (short) 0, len, outBuffer, outBufferOffset);
+            Profiler.count(Profiler.EEPROM_WRITE);
+            Profiler.count(Profiler.KA_INIT);
+            Profiler.count(Profiler.KA_SECRET);
             // Return always length of whole coordinate X instead of len - some real cards returns shorter value equal to SHA-1 output size although PLAIN results is filled into buffer (GD60)
             return curve.COORD_SIZE;
         }
@@ -1665,7 +1901,7 @@ public class jcmathlib {
             ySq.modMult(x, curve.pBN);
             ySq.modAdd(curve.bBN, curve.pBN);
             y.clone(ySq);
-            y.modSqrt(curve.pBN);
+            y.modSqrt(curve.pBN, curve.sqrtExpBN);
 
             // Construct public key with <x, y_1>
             pointBuffer[0] = 0x04;
@@ -1749,10 +1985,18 @@ public class jcmathlib {
                 y.modAdd(curve.aBN, curve.pBN);
                 y.modMult(x, curve.pBN);
                 y.modAdd(curve.bBN, curve.pBN);
-                y.modSqrt(curve.pBN);
+                p.clone(y);
+                y.modSqrt(curve.pBN, curve.sqrtExpBN);
+
+                // Reject x coordinates without a point on the curve
+                x.clone(y);
+                x.modSq(curve.pBN);
+                if (!x.equals(p)) {
+                    ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+                }
 
                 pointBuffer[0] = 0x04;
-                x.prependZeros(curve.COORD_SIZE, pointBuffer, (short) 1);
+                Util.arrayCopyNonAtomic(point, (short) (offset + 1), pointBuffer, (short) 1, curve.COORD_SIZE);
 
                 boolean odd = y.isOdd();
                 if ((!odd && point[offset] != (byte) 0x02) || (odd && point[offset] != (byte) 0x03)) {
@@ -1799,7 +2043,7 @@ public class jcmathlib {
                 y.modAdd(curve.aBN, curve.pBN);
                 y.modMult(x, curve.pBN);
                 y.modAdd(curve.bBN, curve.pBN);
-                y.modSqrt(curve.pBN);
+                y.modSqrt(curve.pBN, curve.sqrtExpBN);
                 boolean odd = y.isOdd();
                 if ((!odd && output[offset] != (byte) 0x02) || (odd && output[offset] != (byte) 0x03)) {
                     p.clone(curve.pBN);
@@ -1875,6 +2119,325 @@ public class jcmathlib {
         }
     }
 
+    /**
+     * Point in Jacobian coordinates (X : Y : Z) representing the affine point (X / Z^2, Y / Z^3).
+     * Used to accumulate sums of points in software with a single inversion when converting back to affine.
+     * The point at infinity is represented by Z = 0.
+     */
+    public static class JacobianPoint {
+        private final ResourceManager rm;
+        private final ECCurve curve;
+        private final BigNat x, y, z;
+
+        /**
+         * Creates new Jacobian point for provided {@code curve}, initially the point at infinity.
+         *
+         * @param curve point's elliptic curve
+         */
+        public JacobianPoint(ECCurve curve) {
+            this.curve = curve;
+            this.rm = curve.rm;
+            x = new BigNat(curve.COORD_SIZE, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+            y = new BigNat(curve.COORD_SIZE, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+            z = new BigNat(curve.COORD_SIZE, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+            setInfinity();
+        }
+
+        /**
+         * Set this point to the point at infinity.
+         */
+        public void setInfinity() {
+            z.setSize(curve.COORD_SIZE);
+            z.zero();
+        }
+
+        /**
+         * Test whether this point is the point at infinity.
+         */
+        public boolean isInfinity() {
+            return z.isZero();
+        }
+
+        /**
+         * Set this point to the value of provided affine point.
+         *
+         * @param other affine point
+         */
+        public void setAffine(ECPoint other) {
+            byte[] pointBuffer = rm.POINT_ARRAY_A;
+
+            other.getW(pointBuffer, (short) 0);
+            setAffine(pointBuffer, (short) 0);
+        }
+
+        /**
+         * Set this point to the value of provided affine point encoded uncompressed as per ANSI X9.62.
+         *
+         * @param buffer array with the uncompressed point
+         * @param offset start offset of the point
+         */
+        public void setAffine(byte[] buffer, short offset) {
+            x.fromByteArray(buffer, (short) (offset + 1), curve.COORD_SIZE);
+            y.fromByteArray(buffer, (short) (offset + 1 + curve.COORD_SIZE), curve.COORD_SIZE);
+            z.setSize(curve.COORD_SIZE);
+            z.setValue((byte) 1);
+        }
+
+        /**
+         * Adds provided affine point (Q) to this (P) using mixed Jacobian-affine addition. No inversion is performed.
+         *
+         * @param other affine point to be added to this
+         */
+        public void addAffine(ECPoint other) {
+            byte[] pointBuffer = rm.POINT_ARRAY_A;
+
+            other.getW(pointBuffer, (short) 0);
+            addAffine(pointBuffer, (short) 0);
+        }
+
+        /**
+         * Adds provided affine point (Q) encoded uncompressed as per ANSI X9.62 to this (P) using mixed
+         * Jacobian-affine addition. The point is read directly from the array, no key object is involved.
+         *
+         * @param buffer array with the uncompressed point
+         * @param offset start offset of the point
+         */
+        public void addAffine(byte[] buffer, short offset) {
+            addAffine(buffer, offset, false);
+        }
+
+        /**
+         * Adds provided affine point (Q) or its negation encoded uncompressed as per ANSI X9.62 to this (P).
+         *
+         * @param buffer array with the uncompressed point
+         * @param offset start offset of the point
+         * @param negate whether -Q is added instead of Q
+         */
+        public void addAffine(byte[] buffer, short offset, boolean negate) {
+            if (isInfinity()) {
+                setAffine(buffer, offset);
+                if (negate) {
+                    negate();
+                }
+                return;
+            }
+            BigNat h = rm.EC_BN_B;
+            BigNat r = rm.EC_BN_C;
+            BigNat v = rm.EC_BN_D;
+            BigNat hhh = rm.EC_BN_E;
+            BigNat tmp = rm.EC_BN_F;
+
+            h.setSize(curve.COORD_SIZE);
+            h.fromByteArray(buffer, (short) (offset + 1), curve.COORD_SIZE);
+            r.setSize(curve.COORD_SIZE);
+            r.fromByteArray(buffer, (short) (offset + 1 + curve.COORD_SIZE), curve.COORD_SIZE);
+            if (negate) {
+                tmp.clone(curve.pBN);
+                tmp.modSub(r, curve.pBN);
+                r.copy(tmp);
+            }
+
+            // U_2 = x_q Z^2, S_2 = y_q Z^3
+            tmp.clone(z);
+            tmp.modSq(curve.pBN);
+            h.modMult(tmp, curve.pBN);
+            tmp.modMult(z, curve.pBN);
+            r.modMult(tmp, curve.pBN);
+
+            // H = U_2 - X, r = S_2 - Y
+            h.modSub(x, curve.pBN);
+            r.modSub(y, curve.pBN);
+            if (h.isZero()) {
+                if (r.isZero()) {
+                    makeDouble();
+                } else {
+                    setInfinity();
+                }
+                return;
+            }
+
+            // V = X H^2, H^3
+            v.clone(h);
+            v.modSq(curve.pBN);
+            hhh.clone(v);
+            hhh.modMult(h, curve.pBN);
+            v.modMult(x, curve.pBN);
+
+            // Z_r = Z H
+            z.modMult(h, curve.pBN);
+
+            // X_r = r^2 - H^3 - 2V
+            tmp.clone(r);
+            tmp.modSq(curve.pBN);
+            tmp.modSub(hhh, curve.pBN);
+            tmp.modSub(v, curve.pBN);
+            tmp.modSub(v, curve.pBN);
+            x.copy(tmp);
+
+            // Y_r = r(V - X_r) - Y H^3
+            v.modSub(x, curve.pBN);
+            v.modMult(r, curve.pBN);
+            y.modMult(hhh, curve.pBN);
+            v.modSub(y, curve.pBN);
+            y.copy(v);
+        }
+
+        /**
+         * Negates this point.
+         */
+        public void negate() {
+            BigNat tmp = rm.EC_BN_B;
+
+            tmp.clone(curve.pBN);
+            tmp.modSub(y, curve.pBN);
+            y.copy(tmp);
+        }
+
+        /**
+         * Doubles this point. No inversion is performed.
+         */
+        public void makeDouble() {
+            if (isInfinity()) {
+                return;
+            }
+            if (y.isZero()) {
+                setInfinity();
+                return;
+            }
+            BigNat yy = rm.EC_BN_B;
+            BigNat s = rm.EC_BN_C;
+            BigNat m = rm.EC_BN_D;
+            BigNat tmp = rm.EC_BN_E;
+
+            // M = 3 X^2 + a Z^4
+            tmp.clone(x);
+            tmp.modSq(curve.pBN);
+            m.clone(tmp);
+            m.modAdd(tmp, curve.pBN);
+            m.modAdd(tmp, curve.pBN);
+            if (!curve.aBN.isZero()) {
+                tmp.clone(z);
+                tmp.modSq(curve.pBN);
+                tmp.modSq(curve.pBN);
+                tmp.modMult(curve.aBN, curve.pBN);
+                m.modAdd(tmp, curve.pBN);
+            }
+
+            // S = 4 X Y^2
+            yy.clone(y);
+            yy.modSq(curve.pBN);
+            s.clone(yy);
+            s.modMult(x, curve.pBN);
+            s.modAdd(s, curve.pBN);
+            s.modAdd(s, curve.pBN);
+
+            // Z_r = 2 Y Z
+            z.modMult(y, curve.pBN);
+            z.modAdd(z, curve.pBN);
+
+            // X_r = M^2 - 2S
+            tmp.clone(m);
+            tmp.modSq(curve.pBN);
+            tmp.modSub(s, curve.pBN);
+            tmp.modSub(s, curve.pBN);
+            x.copy(tmp);
+
+            // Y_r = M(S - X_r) - 8 Y^4
+            yy.modSq(curve.pBN);
+            yy.modAdd(yy, curve.pBN);
+            yy.modAdd(yy, curve.pBN);
+            yy.modAdd(yy, curve.pBN);
+            s.modSub(x, curve.pBN);
+            s.modMult(m, curve.pBN);
+            s.modSub(yy, curve.pBN);
+            y.copy(s);
+        }
+
+        /**
+         * Set this point to the sum of scalars[j] P_j over j in 0..count using Straus interleaving: all points
+         * share one pass of doublings, and each scalar is scanned in non-adjacent form, so about a third of
+         * the digits needs an addition of P_j or -P_j. The digit at position i is bit i + 1 of 3 s minus
+         * bit i + 1 of s. Points are read from the array and no KeyAgreement or key object is used.
+         * Scalars are public, the running time depends on them.
+         *
+         * @param scalars scalars of the points
+         * @param points  array with uncompressed points
+         * @param offset  start offset of the first point
+         * @param stride  distance between starts of consecutive points
+         * @param count   number of points
+         * @param tripled scratch array of at least count * (COORD_SIZE + 1) bytes for the tripled scalars
+         */
+        public void multiScalarMultiplication(BigNat[] scalars, byte[] points, short offset, short stride, short count, byte[] tripled) {
+            short tripledSize = (short) (curve.COORD_SIZE + 1);
+            for (short j = 0; j < count; ++j) {
+                short start = (short) (j * tripledSize);
+                scalars[j].prependZeros(curve.COORD_SIZE, tripled, (short) (start + 1));
+                short carry = 0;
+                for (short i = (short) (start + curve.COORD_SIZE); i > start; --i) {
+                    carry = (short) (3 * (tripled[i] & 0xff) + carry);
+                    tripled[i] = (byte) carry;
+                    carry = (short) (carry >> 8);
+                }
+                tripled[start] = (byte) carry;
+            }
+
+            setInfinity();
+            for (short bit = (short) (curve.KEY_BIT_LENGTH + 1); bit > 0; --bit) {
+                makeDouble();
+                short index = (short) (curve.COORD_SIZE - (bit >> 3));
+                byte mask = (byte) (1 << (bit & 0x07));
+                for (short j = 0; j < count; ++j) {
+                    boolean tripledBit = (byte) (tripled[(short) (j * tripledSize + index)] & mask) != (byte) 0;
+                    if (tripledBit != scalars[j].isBitSet(bit)) {
+                        addAffine(points, (short) (offset + j * stride), !tripledBit);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Converts this point to affine coordinates using a single inversion and stores it into provided point.
+         *
+         * @param output affine point for the result
+         */
+        public void toAffine(ECPoint output) {
+            byte[] pointBuffer = rm.POINT_ARRAY_A;
+
+            toAffine(pointBuffer, (short) 0);
+            output.setW(pointBuffer, (short) 0, curve.POINT_SIZE);
+        }
+
+        /**
+         * Converts this point to affine coordinates using a single inversion and writes it uncompressed
+         * as per ANSI X9.62 into provided array.
+         *
+         * @param buffer output array
+         * @param offset start offset of the point
+         */
+        public void toAffine(byte[] buffer, short offset) {
+            if (isInfinity()) {
+                ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+            }
+            BigNat zInv = rm.EC_BN_B;
+            BigNat zInvPow = rm.EC_BN_C;
+            BigNat coord = rm.EC_BN_D;
+
+            zInv.clone(z);
+            zInv.modInv(curve.pBN);
+            zInvPow.clone(zInv);
+            zInvPow.modSq(curve.pBN);
+
+            buffer[offset] = (byte) 0x04;
+            coord.clone(x);
+            coord.modMult(zInvPow, curve.pBN);
+            coord.prependZeros(curve.COORD_SIZE, buffer, (short) (offset + 1));
+            zInvPow.modMult(zInv, curve.pBN);
+            coord.clone(y);
+            coord.modMult(zInvPow, curve.pBN);
+            coord.prependZeros(curve.COORD_SIZE, buffer, (short) (offset + 1 + curve.COORD_SIZE));
+        }
+    }
+
     /**
      * The control point for unified allocation of arrays and objects with customable
      * specification of allocator type (RAM/EEPROM) for particular array. Allows for
@@ -1911,6 +2474,10 @@ public class jcmathlib {
 
         public static final short ALLOCATOR_TYPE_ARRAY_LENGTH = (short) (HASH_ARRAY + 1);
 
+        public static final byte POLICY_RAM = (byte) 0;
+        public static final byte POLICY_TRADEOFF = (byte) 1;
+        public static final byte POLICY_EEPROM = (byte) 2;
+
         /**
          * Creates new allocator control object, resets performance counters
          */
@@ -1919,6 +2486,25 @@ public class jcmathlib {
             setAllAllocatorsRAM();
             resetAllocatorCounters();
         }
+        /**
+         * Apply one of the predefined allocation policies
+         * @param policy POLICY_RAM, POLICY_TRADEOFF or POLICY_EEPROM
+         */
+        public void setPolicy(byte policy) {
+            switch (policy) {
+                case POLICY_RAM:
+                    setAllAllocatorsRAM();
+                    break;
+                case POLICY_TRADEOFF:
+                    setAllocatorsTradeoff();
+                    break;
+                case POLICY_EEPROM:
+                    setAllAllocatorsEEPROM();
+                    break;
+                default:
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+        }
         /**
          * All type of allocator for all object as EEPROM
          */
@@ -2078,6 +2664,64 @@ public class jcmathlib {
         private OperationSupport() {
         }
 
+        /**
+         * Detect point arithmetic engines of the running card and set EC_HW_XY, EC_HW_X and EC_HW_ADD accordingly.
+         * The key agreements of the given ResourceManager are run with the curve's disposable key, and each is kept
+         * only if it computes the known answer 2G. An X-only key agreement is instantiated only if the XY one fails.
+         * Engines whose flags are cleared before the ResourceManager is created are not probed. RSA flags are not
+         * probed; ResourceManager clears RSA_SQ if the card has no raw RSA cipher.
+         *
+         * @param doubleG expected value of 2G, uncompressed
+         */
+        public void probe(ResourceManager rm, ECCurve curve, byte[] doubleG) {
+            ECPrivateKey key = curve.disposablePriv;
+            byte[] buffer = rm.POINT_ARRAY_A;
+
+            // 2 * G
+            Util.arrayFillNonAtomic(buffer, (short) 0, (short) buffer.length, (byte) 0);
+            buffer[(short) (curve.COORD_SIZE - 1)] = (byte) 2;
+            key.setG(curve.G, (short) 0, curve.POINT_SIZE);
+            key.setS(buffer, (short) 0, curve.COORD_SIZE);
+            EC_HW_XY = probeKA(rm.ecMultKA, KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY, key, curve.G, buffer, doubleG, (short) 0, curve.POINT_SIZE);
+            if (!EC_HW_XY && rm.ecMultKA != null && rm.ecMultKA.getAlgorithm() == KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY) {
+                rm.ecMultKA = EC_HW_X ? ResourceManager.newKeyAgreement(KeyAgreement.ALG_EC_SVDP_DH_PLAIN) : null;
+            }
+            EC_HW_X = !EC_HW_XY && probeKA(rm.ecMultKA, KeyAgreement.ALG_EC_SVDP_DH_PLAIN, key, curve.G, buffer, doubleG, (short) 1, curve.COORD_SIZE);
+            if (!EC_HW_XY && !EC_HW_X) {
+                rm.ecMultKA = null;
+            }
+            // 1 * G + G
+            Util.arrayFillNonAtomic(buffer, (short) 0, (short) buffer.length, (byte) 0);
+            buffer[(short) (curve.COORD_SIZE - 1)] = (byte) 1;
+            key.setS(buffer, (short) 0, curve.COORD_SIZE);
+            EC_HW_ADD = probeKA(rm.ecAddKA, KeyAgreement.ALG_EC_PACE_GM, key, curve.G, buffer, doubleG, (short) 0, curve.POINT_SIZE);
+            if (!EC_HW_ADD) {
+                rm.ecAddKA = null;
+            }
+            if (!EC_HW_XY) {
+                EC_SW_DOUBLE = true;
+            }
+        }
+
+        /**
+         * Run a KeyAgreement with the given key on point G and compare the selected part of its output to the expected value.
+         *
+         * @return true if the KeyAgreement implements the given algorithm and its output matches
+         */
+        private static boolean probeKA(KeyAgreement ka, byte algorithm, ECPrivateKey key, byte[] G, byte[] buffer, byte[] expected, short expectedOffset, short expectedLength) {
+            if (ka == null || ka.getAlgorithm() != algorithm) {
+                return false;
+            }
+            try {
+                ka.init(key);
+                // Output length is not checked as some cards report a shorter length for a full X coordinate (GD60)
+                ka.generateSecret(G, (short) 0, (short) G.length, buffer, (short) 0);
+                return Util.arrayCompare(buffer, (short) 0, expected, expectedOffset, expectedLength) == 0;
+            } catch (CardRuntimeException e) {
+                return false;
+            }
+        }
+
         public static OperationSupport getInstance() {
             if (OperationSupport.instance == null) OperationSupport.instance = new OperationSupport();
             return OperationSupport.instance;
@@ -2140,6 +2784,8 @@ public class jcmathlib {
      */
     public static class ResourceManager {
         public ObjectAllocator memAlloc;
+        // Lease flags of helper objects indexed by their ObjectAllocator identifiers
+        private byte[] leases;
 
         MessageDigest hashEngine;
         KeyAgreement ecMultKA;
@@ -2168,6 +2814,13 @@ public class jcmathlib {
         public final short MAX_COORD_SIZE;
 
         public ResourceManager(short maxEcLength) {
+            this(maxEcLength, ObjectAllocator.POLICY_RAM);
+        }
+
+        /**
+         * @param allocatorPolicy placement of helper objects, see {@link ObjectAllocator#setPolicy(byte)}
+         */
+        public ResourceManager(short maxEcLength, byte allocatorPolicy) {
             short min = OperationSupport.getInstance().MIN_RSA_BIT_LENGTH;
             if (maxEcLength <= (short) 256) {
                 MAX_EXP_BIT_LENGTH = (short) 512 < min ? min : (short) 512;
@@ -2196,10 +2849,9 @@ public class jcmathlib {
             MAX_COORD_SIZE = (short) (MAX_POINT_SIZE / 2);
 
             memAlloc = new ObjectAllocator();
-            memAlloc.setAllAllocatorsRAM();
             // if required, memory for helper objects and arrays can be in persistent memory to save RAM (or some tradeoff)
-            // ObjectAllocator.setAllAllocatorsEEPROM();
-            // ObjectAllocator.setAllocatorsTradeoff();
+            memAlloc.setPolicy(allocatorPolicy);
+            leases = JCSystem.makeTransientByteArray(ObjectAllocator.ALLOCATOR_TYPE_ARRAY_LENGTH, JCSystem.CLEAR_ON_RESET);
 
 
             ARRAY_A = memAlloc.allocateByteArray(MAX_SQ_LENGTH, memAlloc.getAllocatorType(ObjectAllocator.ARRAY_A));
@@ -2234,24 +2886,29 @@ public class jcmathlib {
             ONE_COORD = new BigNat(MAX_COORD_SIZE, JCSystem.MEMORY_TYPE_PERSISTENT, this);
             ONE_COORD.setValue((byte) 1);
             // ECC Helpers
+            // Key agreements the card does not implement are left null, see OperationSupport.probe
             if (OperationSupport.getInstance().EC_HW_XY) {
-                // ecMultKA = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY, false);
-                ecMultKA = KeyAgreement.getInstance((byte) 6, false);
-            } else if (OperationSupport.getInstance().EC_HW_X) {
-                // ecMultKA = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
-                ecMultKA = KeyAgreement.getInstance((byte) 3, false);
+                ecMultKA = newKeyAgreement(KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY);
+            }
+            if (ecMultKA == null && OperationSupport.getInstance().EC_HW_X) {
+                ecMultKA = newKeyAgreement(KeyAgreement.ALG_EC_SVDP_DH_PLAIN);
             }
             // verifyEcdsa = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
             verifyEcdsa = Signature.getInstance((byte) 33, false);
             if (OperationSupport.getInstance().EC_HW_ADD) {
-                // ecAddKA = KeyAgreement.getInstance(KeyAgreement.ALG_EC_PACE_GM, false);
-                ecAddKA = KeyAgreement.getInstance((byte) 5, false);
+                ecAddKA = newKeyAgreement(KeyAgreement.ALG_EC_PACE_GM);
             }
 
             // RSA Sq Helpers
+            if (OperationSupport.getInstance().RSA_SQ) {
+                try {
+                    sqCiph = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+                } catch (CryptoException e) {
+                    OperationSupport.getInstance().RSA_SQ = false;
+                }
+            }
             if (OperationSupport.getInstance().RSA_SQ) {
                 Util.arrayFillNonAtomic(ARRAY_A, (short) 0, MAX_SQ_LENGTH, (byte) 0xff);
-                sqCiph = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
                 modSqCiph = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
                 if (OperationSupport.getInstance().RSA_PUB) {
                     modSqPub = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, MAX_EXP_BIT_LENGTH, false);
@@ -2274,6 +2931,75 @@ public class jcmathlib {
             expCiph = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
         }
 
+        /**
+         * @return a KeyAgreement of the given algorithm, or null if the card does not implement it
+         */
+        static KeyAgreement newKeyAgreement(byte algorithm) {
+            try {
+                return KeyAgreement.getInstance(algorithm, false);
+            } catch (CryptoException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Lease a helper BigNat for exclusive use until it is released. Operations using the helper internally
+         * lease it as well, so an overlapping use fails with SW_LOCK_ALREADYLOCKED instead of corrupting the value.
+         *
+         * @param helper ObjectAllocator identifier, one of BN_A, BN_B and BN_C
+         * @return the leased BigNat with an unspecified size and value
+         */
+        public BigNat lease(byte helper) {
+            BigNat leased = helper(helper);
+            if (leases[helper] != 0) {
+                ISOException.throwIt(ReturnCodes.SW_LOCK_ALREADYLOCKED);
+            }
+            leases[helper] = 1;
+            return leased;
+        }
+
+        /**
+         * Access a helper leased earlier, e.g., by the caller of the current method.
+         */
+        public BigNat leased(byte helper) {
+            BigNat leased = helper(helper);
+            if (leases[helper] == 0) {
+                ISOException.throwIt(ReturnCodes.SW_LOCK_NOTLOCKED);
+            }
+            return leased;
+        }
+
+        private BigNat helper(byte helper) {
+            switch (helper) {
+                case ObjectAllocator.BN_A:
+                    return BN_A;
+                case ObjectAllocator.BN_B:
+                    return BN_B;
+                case ObjectAllocator.BN_C:
+                    return BN_C;
+                default:
+                    ISOException.throwIt(ReturnCodes.SW_LOCK_OBJECT_NOT_FOUND);
+                    return null;
+            }
+        }
+
+        /**
+         * Return a helper obtained by {@link #lease(byte)}.
+         */
+        public void release(byte helper) {
+            if (leases[helper] == 0) {
+                ISOException.throwIt(ReturnCodes.SW_LOCK_NOTLOCKED);
+            }
+            leases[helper] = 0;
+        }
+
+        /**
+         * Return all leased helpers, e.g., after an operation was interrupted by an exception.
+         */
+        public void releaseAll() {
+            Util.arrayFillNonAtomic(leases, (short) 0, (short) leases.length, (byte) 0);
+        }
+
         /**
          * Preloads modSq engine with a given mod. Can increase performance when the same mod is used repeatedly. The
          * provided mod is assumed to be fixed.
@@ -2356,6 +3082,71 @@ public class jcmathlib {
 
     }
 
+    /**
+     * Optional counters of expensive operations, tallied separately for phases set by the application. The counts
+     * form a card-independent cost model: RSA engine calls, key agreement initializations and secret generations,
+     * SHA-256 updates and finalizations, and writes of persistent key objects.
+     */
+    public static class Profiler {
+        public static final byte RSA = 0;
+        public static final byte KA_INIT = 1;
+        public static final byte KA_SECRET = 2;
+        public static final byte SHA_UPDATE = 3;
+        public static final byte SHA_FINAL = 4;
+        public static final byte EEPROM_WRITE = 5;
+        public static final byte COUNTERS = 6;
+
+        // Counters of each phase followed by the current phase; null while profiling is disabled
+        private static short[] counts;
+
+        /**
+         * Enable profiling with the given number of phases. Phase 0 is active initially.
+         */
+        public static void enable(byte phases, ResourceManager rm) {
+            counts = rm.memAlloc.allocateShortArray((short) (phases * COUNTERS + 1), JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+        }
+
+        public static boolean isEnabled() {
+            return counts != null;
+        }
+
+        public static void setPhase(byte phase) {
+            if (counts != null) {
+                counts[(short) (counts.length - 1)] = phase;
+            }
+        }
+
+        public static void count(byte counter) {
+            count(counter, (short) 1);
+        }
+
+        /**
+         * Add amount to the counter of the current phase, saturating at the maximal short value.
+         */
+        public static void count(byte counter, short amount) {
+            if (counts == null) {
+                return;
+            }
+            short index = (short) (counts[(short) (counts.length - 1)] * COUNTERS + counter);
+            short value = (short) (counts[index] + amount);
+            counts[index] = value < 0 ? Short.MAX_VALUE : value;
+        }
+
+        /**
+         * Write all counters as 2-byte values ordered by phase and reset them.
+         *
+         * @return number of bytes written
+         */
+        public static short dump(byte[] buffer, short offset) {
+            short length = (short) (counts.length - 1);
+            for (short i = 0; i < length; i++) {
+                offset = Util.setShort(buffer, offset, counts[i]);
+                counts[i] = 0;
+            }
+            return (short) (2 * length);
+        }
+    }
+
     /**
      *
     * @author Vasilios Mavroudis and Petr Svenda
@@ -2435,6 +3226,27 @@ public class jcmathlib {
                 (byte) 0xfb, (byte) 0x10, (byte) 0xd4, (byte) 0xb8
         };
 
+        // 2G, known answer for probing point arithmetic engines
+        public final static byte[] G2 = {
+                (byte) 0x04,
+                (byte) 0xc6, (byte) 0x04, (byte) 0x7f, (byte) 0x94,
+                (byte) 0x41, (byte) 0xed, (byte) 0x7d, (byte) 0x6d,
+                (byte) 0x30, (byte) 0x45, (byte) 0x40, (byte) 0x6e,
+                (byte) 0x95, (byte) 0xc0, (byte) 0x7c, (byte) 0xd8,
+                (byte) 0x5c, (byte) 0x77, (byte) 0x8e, (byte) 0x4b,
+                (byte) 0x8c, (byte) 0xef, (byte) 0x3c, (byte) 0xa7,
+                (byte) 0xab, (byte) 0xac, (byte) 0x09, (byte) 0xb9,
+                (byte) 0x5c, (byte) 0x70, (byte) 0x9e, (byte) 0xe5,
+                (byte) 0x1a, (byte) 0xe1, (byte) 0x68, (byte) 0xfe,
+                (byte) 0xa6, (byte) 0x3d, (byte) 0xc3, (byte) 0x39,
+                (byte) 0xa3, (byte) 0xc5, (byte) 0x84, (byte) 0x19,
+                (byte) 0x46, (byte) 0x6c, (byte) 0xea, (byte) 0xee,
+                (byte) 0xf7, (byte) 0xf6, (byte) 0x32, (byte) 0x65,
+                (byte) 0x32, (byte) 0x66, (byte) 0xd0, (byte) 0xe1,
+                (byte) 0x23, (byte) 0x64, (byte) 0x31, (byte) 0xa9,
+                (byte) 0x50, (byte) 0xcf, (byte) 0xe5, (byte) 0x2a
+        };
+
         public final static byte[] r = {
                 (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
                 (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
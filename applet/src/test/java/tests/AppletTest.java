@@ -15,6 +15,9 @@ import org.junit.jupiter.api.*;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.Security;
 import java.util.Arrays;
 
@@ -40,26 +43,129 @@ public class AppletTest extends BaseTest {
                 Consts.INS_SETUP,
                 tv.minParticipants(),
                 tv.maxParticipants(),
-                Util.concat(new byte[]{(byte) CARD}, tv.secret(CARD), recodePoint(tv.groupKey()))
+                Util.concat(identifier(CARD), tv.secret(CARD), recodePoint(tv.groupKey()))
         );
         return cm.transmit(cmd);
     }
 
+    public byte[] identifier(int identifier) {
+        return new byte[]{(byte) (identifier >> 8), (byte) identifier};
+    }
+
     public ResponseAPDU commit(CardManager cm, byte[] data) throws CardException {
-        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_COMMIT, data.length, 0, data);
+        return commit(cm, data, 0);
+    }
+
+    public ResponseAPDU commit(CardManager cm, byte[] data, int session) throws CardException {
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_COMMIT, data.length, session, data);
         return cm.transmit(cmd);
     }
 
     public ResponseAPDU commitment(CardManager cm, int identifier, byte[] hiding, byte[] binding) throws CardException {
-        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_COMMITMENT, identifier, 0, Util.concat(recodePoint(hiding), recodePoint(binding)));
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_COMMITMENT, 0, 0, Util.concat(identifier(identifier), recodePoint(hiding), recodePoint(binding)));
+        return cm.transmit(cmd);
+    }
+
+    public byte[] commitmentList(byte[] card_data) {
+        byte[] list = new byte[0];
+        for(int identifier : tv.participants()) {
+            byte[] hiding = Arrays.copyOfRange(card_data, 0, 33);
+            byte[] binding = Arrays.copyOfRange(card_data, 33, 66);
+            if(identifier != CARD) {
+                hiding = tv.hidingCommitment(identifier);
+                binding = tv.bindingCommitment(identifier);
+            }
+            list = Util.concat(list, identifier(identifier), recodePoint(hiding), recodePoint(binding));
+        }
+        return list;
+    }
+
+    public ResponseAPDU commitments(CardManager cm, byte[] list) throws CardException {
+        return commitments(cm, list, 0);
+    }
+
+    public ResponseAPDU commitments(CardManager cm, byte[] list, int session) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_COMMITMENTS, 0, session, list);
         return cm.transmit(cmd);
     }
 
+    public ResponseAPDU commitmentsChained(CardManager cm, byte[] list, int chunk) throws CardException {
+        ResponseAPDU responseAPDU = null;
+        for(int offset = 0; offset < list.length; offset += chunk) {
+            int end = Math.min(offset + chunk, list.length);
+            int cla = end < list.length ? Consts.CLA_JCFROST | 0x10 : Consts.CLA_JCFROST;
+            responseAPDU = cm.transmit(new CommandAPDU(cla, Consts.INS_COMMITMENTS, 0, 0, Arrays.copyOfRange(list, offset, end)));
+            if(responseAPDU.getSW() != 0x9000) {
+                break;
+            }
+        }
+        return responseAPDU;
+    }
+
     public ResponseAPDU sign(CardManager cm, byte[] msg) throws CardException {
-        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SIGN, msg.length, 0, msg);
+        return sign(cm, msg, 0);
+    }
+
+    public ResponseAPDU sign(CardManager cm, byte[] msg, int session) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SIGN, Consts.SIGN_SINGLE, session, msg);
         return cm.transmit(cmd);
     }
 
+    public ResponseAPDU preprocess(CardManager cm, int slot, int count, byte[] data) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_PREPROCESS, slot, count, data, 66 * count);
+        return cm.transmit(cmd);
+    }
+
+    public ResponseAPDU signPreprocessed(CardManager cm, int slot, byte[] msg) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SIGN_PREPROCESSED, 0, 0, Util.concat(new byte[]{(byte) slot}, msg));
+        return cm.transmit(cmd);
+    }
+
+    public ResponseAPDU signStream(CardManager cm, int phase, byte[] data, int chunk) throws CardException {
+        return transmitChained(cm, Consts.INS_SIGN_STREAM, phase, data, chunk);
+    }
+
+    public ResponseAPDU signChained(CardManager cm, int mode, byte[] msg, int chunk) throws CardException {
+        return transmitChained(cm, Consts.INS_SIGN, mode, msg, chunk);
+    }
+
+    public ResponseAPDU transmitChained(CardManager cm, int ins, int p1, byte[] data, int chunk) throws CardException {
+        ResponseAPDU responseAPDU = null;
+        int offset = 0;
+        do {
+            int end = chunk == 0 ? data.length : Math.min(offset + chunk, data.length);
+            int cla = end < data.length ? Consts.CLA_JCFROST | 0x10 : Consts.CLA_JCFROST;
+            responseAPDU = cm.transmit(new CommandAPDU(cla, ins, p1, 0, Arrays.copyOfRange(data, offset, end)));
+            offset = end;
+        } while(offset < data.length && responseAPDU.getSW() == 0x9000);
+        return responseAPDU;
+    }
+
+    public byte[] batchEntry(int slot, byte[] msg, byte[] card_data) {
+        byte[] entry = Util.concat(new byte[]{(byte) slot}, identifier(msg.length), msg);
+        for(int identifier : tv.participants()) {
+            byte[] hiding = Arrays.copyOfRange(card_data, 0, 33);
+            byte[] binding = Arrays.copyOfRange(card_data, 33, 66);
+            if(identifier != CARD) {
+                hiding = tv.hidingCommitment(identifier);
+                binding = tv.bindingCommitment(identifier);
+            }
+            entry = Util.concat(entry, recodePoint(hiding), recodePoint(binding));
+        }
+        return entry;
+    }
+
+    public ResponseAPDU signBatch(CardManager cm, byte[]... entries) throws CardException {
+        byte[] data = new byte[]{(byte) entries.length, (byte) tv.participants().length};
+        for(int identifier : tv.participants()) {
+            data = Util.concat(data, identifier(identifier));
+        }
+        for(byte[] entry : entries) {
+            data = Util.concat(data, entry);
+        }
+        return cm.transmit(new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SIGN_BATCH, 0, 0, data, 256));
+    }
+
     public ResponseAPDU reset(CardManager cm) throws CardException {
         final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_RESET, 0, 0);
         return cm.transmit(cmd);
@@ -70,6 +176,207 @@ public class AppletTest extends BaseTest {
         return cm.transmit(cmd);
     }
 
+    public ResponseAPDU capabilities(CardManager cm) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_CAPABILITIES, 0, 0);
+        return cm.transmit(cmd);
+    }
+
+    public ResponseAPDU setup(CardManager cm, int min, int max, int identifier, BigInteger share, byte[] groupKey) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SETUP, min, max,
+                Util.concat(identifier(identifier), scalar(share), groupKey));
+        return cm.transmit(cmd);
+    }
+
+    public byte[] scalar(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, result, 32 - length, length);
+        return result;
+    }
+
+    public byte[] sha256(byte[]... parts) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for(byte[] part : parts) {
+            digest.update(part);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * hash_to_field of FROST(secp256k1, SHA-256) with expand_message_xmd, computed independently of the card.
+     */
+    public BigInteger hashToScalar(String tag, byte[] msg, ECNamedCurveParameterSpec spec) throws Exception {
+        byte[] dst = ("FROST-secp256k1-SHA256-v1" + tag).getBytes(StandardCharsets.US_ASCII);
+        byte[] dstPrime = Util.concat(dst, new byte[]{(byte) dst.length});
+        byte[] b0 = sha256(new byte[64], msg, new byte[]{0x00, 0x30, 0x00}, dstPrime);
+        byte[] b1 = sha256(b0, new byte[]{0x01}, dstPrime);
+        byte[] xored = new byte[32];
+        for(int i = 0; i < 32; ++i) {
+            xored[i] = (byte) (b0[i] ^ b1[i]);
+        }
+        byte[] b2 = sha256(xored, new byte[]{0x02}, dstPrime);
+        return new BigInteger(1, Util.concat(b1, Arrays.copyOfRange(b2, 0, 16))).mod(spec.getN());
+    }
+
+    /**
+     * Verify the aggregate of signature shares as a Schnorr signature under the group key.
+     * @param list commitment list in the COMMITMENTS format
+     */
+    public boolean verifyShares(byte[] groupKey, byte[] msg, byte[] list, BigInteger[] shares) throws Exception {
+        ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec("secp256k1");
+        byte[] context = "FROST-secp256k1-SHA256-v1".getBytes(StandardCharsets.US_ASCII);
+        int count = list.length / (2 + 2 * 33);
+        byte[] encodedList = new byte[0];
+        for(int j = 0; j < count; ++j) {
+            int offset = j * (2 + 2 * 33);
+            encodedList = Util.concat(encodedList, new byte[30], Arrays.copyOfRange(list, offset, offset + 2 + 2 * 33));
+        }
+        byte[] prefix = Util.concat(groupKey, sha256(context, "msg".getBytes(StandardCharsets.US_ASCII), msg),
+                sha256(context, "com".getBytes(StandardCharsets.US_ASCII), encodedList));
+        org.bouncycastle.math.ec.ECPoint commitment = spec.getCurve().getInfinity();
+        for(int j = 0; j < count; ++j) {
+            int offset = j * (2 + 2 * 33);
+            BigInteger rho = hashToScalar("rho", Util.concat(prefix, new byte[30], Arrays.copyOfRange(list, offset, offset + 2)), spec);
+            org.bouncycastle.math.ec.ECPoint hiding = spec.getCurve().decodePoint(Arrays.copyOfRange(list, offset + 2, offset + 2 + 33));
+            org.bouncycastle.math.ec.ECPoint binding = spec.getCurve().decodePoint(Arrays.copyOfRange(list, offset + 2 + 33, offset + 2 + 2 * 33));
+            commitment = commitment.add(hiding).add(binding.multiply(rho));
+        }
+        commitment = commitment.normalize();
+        BigInteger challenge = hashToScalar("chal", Util.concat(commitment.getEncoded(true), groupKey, msg), spec);
+        BigInteger z = BigInteger.ZERO;
+        for(BigInteger share : shares) {
+            z = z.add(share).mod(spec.getN());
+        }
+        org.bouncycastle.math.ec.ECPoint key = spec.getCurve().decodePoint(groupKey);
+        return spec.getG().multiply(z).equals(commitment.add(key.multiply(challenge)));
+    }
+
+    @Test
+    public void testCapabilities() throws Exception {
+        CardManager cm = connect();
+        ResponseAPDU responseAPDU = capabilities(cm);
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        Assert.assertEquals(responseAPDU.getData().length, 4);
+        Assert.assertEquals((short) (((responseAPDU.getData()[0] & 0xff) << 8) | (responseAPDU.getData()[1] & 0xff)), JCFROST.CARD_TYPE);
+        Assert.assertNotEquals(capabilityBits(responseAPDU) & Consts.CAPABILITY_EC_HW_XY, 0);
+    }
+
+    private short capabilityBits(ResponseAPDU responseAPDU) {
+        return (short) (((responseAPDU.getData()[2] & 0xff) << 8) | (responseAPDU.getData()[3] & 0xff));
+    }
+
+    @Test
+    public void testSoftwareEngines() throws Exception {
+        if(!JCFROST.DEBUG) {
+            return;
+        }
+        short xy = Consts.CAPABILITY_EC_HW_XY, x = Consts.CAPABILITY_EC_HW_X, add = Consts.CAPABILITY_EC_HW_ADD;
+        for(short disabled : new short[]{xy, add, (short) (xy | x), (short) (xy | x | add)}) {
+            CardManager cm = connectRaw(new byte[]{Consts.INSTALL_DISABLED_ENGINES, 1, (byte) disabled});
+            Assert.assertEquals(capabilityBits(capabilities(cm)) & disabled, 0);
+            setup(cm);
+            // Commitments are computed by the comb whenever XY key agreement is disabled
+            byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+            Assert.assertArrayEquals(Util.concat(tv.hidingCommitment(CARD), tv.bindingCommitment(CARD)), card_data);
+            Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+            ResponseAPDU responseAPDU = sign(cm, tv.message());
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+        }
+    }
+
+    @Test
+    public void testJacobianPoint() throws Exception {
+        if(isPhysical()) {
+            return;
+        }
+        connectRaw(new byte[]{Consts.INSTALL_DISABLED_ENGINES, 1, (byte) (Consts.CAPABILITY_EC_HW_XY | Consts.CAPABILITY_EC_HW_X)});
+        byte[] G = jcmathlib.SecP256k1.G;
+        byte[] G2 = jcmathlib.SecP256k1.G2;
+        byte[] result = new byte[JCFROST.UNCOMPRESSED_POINT_SIZE];
+        jcmathlib.JacobianPoint point = new jcmathlib.JacobianPoint(JCFROST.curve);
+        point.setAffine(G, (short) 0);
+        point.makeDouble();
+        point.toAffine(result, (short) 0);
+        Assert.assertArrayEquals(G2, result);
+
+        point.setAffine(G, (short) 0);
+        point.addAffine(G, (short) 0); // equal points are doubled
+        point.toAffine(result, (short) 0);
+        Assert.assertArrayEquals(G2, result);
+        point.addAffine(G, (short) 0);
+        point.addAffine(G, (short) 0, true);
+        point.toAffine(result, (short) 0);
+        Assert.assertArrayEquals(G2, result);
+
+        // 3 G + (r - 1) G = 2 G
+        jcmathlib.BigNat three = new jcmathlib.BigNat((short) 32, javacard.framework.JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
+        three.setValue((byte) 3);
+        jcmathlib.BigNat minusOne = new jcmathlib.BigNat((short) 32, javacard.framework.JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, JCFROST.rm);
+        minusOne.fromByteArray(jcmathlib.SecP256k1.r, (short) 0, (short) 32);
+        minusOne.decrement();
+        point.multiScalarMultiplication(new jcmathlib.BigNat[]{three, minusOne}, Util.concat(G, G), (short) 0, (short) G.length, (short) 2, new byte[2 * 33]);
+        point.toAffine(result, (short) 0);
+        Assert.assertArrayEquals(G2, result);
+    }
+
+    public ResponseAPDU memory(CardManager cm) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_MEMORY, 0, 0);
+        return cm.transmit(cmd);
+    }
+
+    private int memoryUsage(byte[] data, int component, boolean eeprom) {
+        int offset = 4 * component + (eeprom ? 2 : 0);
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    @Test
+    public void testMemory() throws Exception {
+        ResponseAPDU responseAPDU = memory(connect());
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        byte[] data = responseAPDU.getData();
+        Assert.assertEquals(data.length, 4 * Consts.MEMORY_COMPONENTS + 3 * 4);
+        Assert.assertNotEquals(memoryUsage(data, Consts.MEMORY_RESOURCES, false), 0);
+        Assert.assertEquals(memoryUsage(data, Consts.MEMORY_KEYS, true), 33 + 33);
+        Assert.assertTrue(memoryUsage(data, Consts.MEMORY_POOL, true) >= 2 * 32 + 2 * JCFROST.UNCOMPRESSED_POINT_SIZE);
+
+        byte[] single = memory(connectRaw(new byte[]{Consts.INSTALL_SESSIONS, 1, 1})).getData();
+        Assert.assertTrue(memoryUsage(single, Consts.MEMORY_SESSIONS, false) < memoryUsage(data, Consts.MEMORY_SESSIONS, false));
+        Assert.assertEquals(memoryUsage(single, Consts.MEMORY_RESOURCES, false), memoryUsage(data, Consts.MEMORY_RESOURCES, false));
+    }
+
+    public ResponseAPDU profile(CardManager cm) throws CardException {
+        final CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_PROFILE, 0, 0);
+        return cm.transmit(cmd);
+    }
+
+    private int profileCount(byte[] data, int phase, int counter) {
+        int offset = 2 * (phase * jcmathlib.Profiler.COUNTERS + counter);
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    @Test
+    public void testProfile() throws Exception {
+        if(!JCFROST.DEBUG) {
+            return;
+        }
+        CardManager cm = connectRaw(new byte[]{Consts.INSTALL_PROFILE, 1, 1});
+        setup(cm);
+        byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+        commitments(cm, commitmentList(card_data));
+        Assert.assertEquals(profile(cm).getSW(), 0x9000);
+        Assert.assertEquals(sign(cm, tv.message()).getSW(), 0x9000);
+        ResponseAPDU responseAPDU = profile(cm);
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        byte[] data = responseAPDU.getData();
+        Assert.assertEquals(data.length, 2 * Consts.PHASES * jcmathlib.Profiler.COUNTERS);
+        Assert.assertEquals(profileCount(data, Consts.PHASE_BINDING_FACTORS, jcmathlib.Profiler.SHA_FINAL), 3 * tv.participants().length);
+        Assert.assertEquals(profileCount(data, Consts.PHASE_CHALLENGE, jcmathlib.Profiler.SHA_FINAL), 3);
+        Assert.assertNotEquals(profileCount(data, Consts.PHASE_GROUP_COMMITMENT, jcmathlib.Profiler.EEPROM_WRITE), 0);
+        Assert.assertArrayEquals(new byte[data.length], profile(cm).getData());
+    }
+
     @Test
     public void testSetup() throws Exception {
         CardManager cm = connect();
@@ -78,7 +385,8 @@ public class AppletTest extends BaseTest {
         Assert.assertEquals(responseAPDU.getSW(), 0x9000);
         if (JCFROST.DEBUG) {
             byte[] expected = Util.concat(
-                    new byte[]{(byte) tv.minParticipants(), (byte) tv.maxParticipants(), (byte) CARD},
+                    new byte[]{(byte) tv.minParticipants(), (byte) tv.maxParticipants()},
+                    identifier(CARD),
                     tv.secret(CARD),
                     tv.groupKey()
             );
@@ -146,4 +454,386 @@ public class AppletTest extends BaseTest {
         }
         reset(cm);
     }
+
+    @Test
+    public void testCommitmentsBatch() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        for(int chunk : new int[]{0, 100}) {
+            byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+            byte[] list = commitmentList(card_data);
+            ResponseAPDU responseAPDU = chunk == 0 ? commitments(cm, list) : commitmentsChained(cm, list, chunk);
+            Assert.assertNotNull(responseAPDU);
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            responseAPDU = sign(cm, tv.message());
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            if(JCFROST.DEBUG) {
+                Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+            }
+        }
+        reset(cm);
+    }
+
+    @Test
+    public void testCommitmentsBatchError() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+        byte[] list = commitmentList(card_data);
+        int entryLength = list.length / tv.participants().length;
+        byte[] swapped = Util.concat(Arrays.copyOfRange(list, entryLength, list.length), Arrays.copyOfRange(list, 0, entryLength));
+        ResponseAPDU responseAPDU = commitments(cm, swapped);
+        Assert.assertEquals(responseAPDU.getSW(), (Consts.E_COMMITMENTS_PREFIX | ((Consts.E_IDENTIFIER_ORDERING & 0x1f) << 8) | 1) & 0xffff);
+        responseAPDU = sign(cm, tv.message());
+        Assert.assertEquals(responseAPDU.getSW(), Consts.E_NOT_ENOUGH_COMMITMENTS & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testCommitmentInvalidPoint() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+        byte[] list = commitmentList(card_data);
+        int entry = tv.participants()[0] == CARD ? 1 : 0;
+        int offset = entry * (2 + 2 * JCFROST.POINT_SIZE);
+        // x^3 + 7 is not a square for x = 5, so the hiding commitment is not on the curve
+        Arrays.fill(list, offset + 3, offset + 2 + JCFROST.POINT_SIZE, (byte) 0);
+        list[offset + 1 + JCFROST.POINT_SIZE] = 0x05;
+        ResponseAPDU responseAPDU = commitments(cm, list);
+        Assert.assertEquals(responseAPDU.getSW(), (Consts.E_COMMITMENTS_PREFIX | ((Consts.E_INVALID_POINT & 0x1f) << 8) | entry) & 0xffff);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_LIST, list, 0).getSW(), 0x9000);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_MESSAGE, tv.message(), 0).getSW(), 0x9000);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_BIND, list, 0).getSW(), Consts.E_INVALID_POINT & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testSignStream() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+        byte[] list = commitmentList(card_data);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_LIST, list, 50).getSW(), 0x9000);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_MESSAGE, tv.message(), 0).getSW(), 0x9000);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_BIND, list, 70).getSW(), 0x9000);
+        ResponseAPDU responseAPDU = signStream(cm, Consts.STREAM_FINAL, tv.message(), 0);
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        Assert.assertEquals(responseAPDU.getData().length, 32);
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+        }
+        Assert.assertEquals(signStream(cm, Consts.STREAM_LIST, list, 0).getSW(), Consts.E_NOT_COMMITTED & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testSignStreamMismatch() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+        byte[] list = commitmentList(card_data);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_MESSAGE, tv.message(), 0).getSW(), Consts.E_STREAM_PHASE & 0xffff);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_LIST, list, 0).getSW(), 0x9000);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_MESSAGE, tv.message(), 0).getSW(), 0x9000);
+        int pointLength = (list.length / tv.participants().length - 2) / 2;
+        byte[] altered = list.clone();
+        System.arraycopy(list, 2, altered, 2 + pointLength, pointLength); // swap commitments of the first party
+        System.arraycopy(list, 2 + pointLength, altered, 2, pointLength);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_BIND, altered, 0).getSW(), Consts.E_STREAM_MISMATCH & 0xffff);
+        Assert.assertEquals(signStream(cm, Consts.STREAM_FINAL, tv.message(), 0).getSW(), Consts.E_STREAM_PHASE & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testSignChained() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] randomness = Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD));
+        byte[] list = commitmentList(commit(cm, randomness).getData());
+        Assert.assertEquals(commitments(cm, list).getSW(), 0x9000);
+        Assert.assertEquals(signChained(cm, Consts.SIGN_FIRST_PASS, tv.message(), 5).getSW(), 0x9000);
+        ResponseAPDU responseAPDU = signChained(cm, Consts.SIGN_SECOND_PASS, tv.message(), 7);
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+        }
+
+        byte[] longMessage = new byte[3000];
+        for(int i = 0; i < longMessage.length; ++i) {
+            longMessage[i] = (byte) i;
+        }
+        commit(cm, randomness);
+        Assert.assertEquals(commitments(cm, list).getSW(), 0x9000);
+        Assert.assertEquals(sign(cm, new byte[32767]).getSW(), 0x6700); // larger than the APDU buffer
+        byte[] expected = sign(cm, longMessage).getData();
+        commit(cm, randomness);
+        Assert.assertEquals(commitments(cm, list).getSW(), 0x9000);
+        Assert.assertEquals(signChained(cm, Consts.SIGN_FIRST_PASS, longMessage, 255).getSW(), 0x9000);
+        responseAPDU = signChained(cm, Consts.SIGN_SECOND_PASS, longMessage, 255);
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(expected, responseAPDU.getData());
+        }
+
+        commit(cm, randomness);
+        Assert.assertEquals(commitments(cm, list).getSW(), 0x9000);
+        Assert.assertEquals(signChained(cm, Consts.SIGN_FIRST_PASS, longMessage, 255).getSW(), 0x9000);
+        longMessage[0] ^= 0x01;
+        Assert.assertEquals(signChained(cm, Consts.SIGN_SECOND_PASS, longMessage, 255).getSW(), Consts.E_STREAM_MISMATCH & 0xffff);
+        Assert.assertEquals(signChained(cm, Consts.SIGN_SECOND_PASS, longMessage, 255).getSW(), Consts.E_STREAM_PHASE & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testSignPrehashed() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] randomness = Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD));
+        byte[] list = commitmentList(commit(cm, randomness).getData());
+        byte[] digest = java.security.MessageDigest.getInstance("SHA-256").digest(tv.message());
+        Assert.assertEquals(commitments(cm, list).getSW(), 0x9000);
+        byte[] expected = sign(cm, digest).getData();
+        commit(cm, randomness);
+        Assert.assertEquals(commitments(cm, list).getSW(), 0x9000);
+        Assert.assertEquals(cm.transmit(new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SIGN, Consts.SIGN_PREHASHED, 0, tv.message())).getSW(), 0x6700);
+        ResponseAPDU responseAPDU = cm.transmit(new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SIGN, Consts.SIGN_PREHASHED, 0, digest));
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        Assert.assertArrayEquals(expected, responseAPDU.getData());
+        reset(cm);
+    }
+
+    @Test
+    public void testSignBatch() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] randomness = Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD));
+        byte[] card_data = Arrays.copyOfRange(preprocess(cm, 0, 3, randomness).getData(), 0, 66);
+        byte[] other = "another message".getBytes();
+        ResponseAPDU responseAPDU = signBatch(cm, batchEntry(0, tv.message(), card_data), batchEntry(1, other, card_data));
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        Assert.assertEquals(responseAPDU.getData().length, 2 * 32);
+        Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+        byte[] expected = signPreprocessed(cm, 2, other).getData();
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(tv.signature(CARD), Arrays.copyOfRange(responseAPDU.getData(), 0, 32));
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(responseAPDU.getData(), 32, 64));
+        }
+        responseAPDU = signBatch(cm, batchEntry(0, tv.message(), card_data));
+        Assert.assertEquals(responseAPDU.getSW(), (Consts.E_SIGN_BATCH_PREFIX | ((Consts.E_SLOT_EMPTY & 0x1f) << 8)) & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testInstallCapacity() throws Exception {
+        for(int capacity : new int[]{tv.participants().length, tv.participants().length - 1}) {
+            CardManager cm = connectRaw(new byte[]{Consts.INSTALL_MAX_PARTIES, 1, (byte) capacity});
+            setup(cm);
+            byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+            ResponseAPDU responseAPDU = commitments(cm, commitmentList(card_data));
+            if(capacity < tv.participants().length) {
+                Assert.assertEquals(responseAPDU.getSW(), (Consts.E_COMMITMENTS_PREFIX | ((Consts.E_TOO_MANY_COMMITMENTS & 0x1f) << 8) | capacity) & 0xffff);
+                continue;
+            }
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            responseAPDU = sign(cm, tv.message());
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            if(JCFROST.DEBUG) {
+                Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+            }
+        }
+        connectRaw(new byte[]{Consts.INSTALL_MAX_PARTIES, 1, (byte) 252});
+        boolean rejected = false;
+        try {
+            connectRaw(new byte[]{Consts.INSTALL_MAX_PARTIES, 1, (byte) 253});
+        } catch (Exception e) {
+            rejected = true;
+        }
+        Assert.assertTrue(rejected);
+    }
+
+    @Test
+    public void testInstallUnknownTag() throws Exception {
+        byte[] unknown = new byte[2 + 0x80];
+        unknown[0] = 0x7f;
+        unknown[1] = (byte) 0x80;
+        CardManager cm = connectRaw(Util.concat(unknown, new byte[]{Consts.INSTALL_SESSIONS, 1, 1}));
+        Assert.assertEquals(commit(cm, new byte[0], 1).getSW(), Consts.E_INVALID_SESSION & 0xffff);
+        boolean rejected = false;
+        try {
+            connectRaw(Arrays.copyOfRange(unknown, 0, 0x40)); // value shorter than its length
+        } catch (Exception e) {
+            rejected = true;
+        }
+        Assert.assertTrue(rejected);
+    }
+
+    @Test
+    public void testInstallProfile() throws Exception {
+        for(byte policy : new byte[]{jcmathlib.ObjectAllocator.POLICY_TRADEOFF, jcmathlib.ObjectAllocator.POLICY_EEPROM}) {
+            CardManager cm = connectRaw(new byte[]{
+                    Consts.INSTALL_CARD_TYPE, 2, (byte) (JCFROST.CARD_TYPE >> 8), (byte) JCFROST.CARD_TYPE,
+                    Consts.INSTALL_ALLOCATOR, 1, policy,
+                    Consts.INSTALL_SESSIONS, 1, 1
+            });
+            setup(cm);
+            Assert.assertEquals(commit(cm, new byte[0], 1).getSW(), Consts.E_INVALID_SESSION & 0xffff);
+            byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+            Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+            ResponseAPDU responseAPDU = sign(cm, tv.message());
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            if(JCFROST.DEBUG) {
+                Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+            }
+        }
+    }
+
+    @Test
+    public void testInstallNonceStorage() throws Exception {
+        for(byte memoryType : new byte[]{0, 1}) { // persistent, cleared on reset
+            CardManager cm = connectRaw(new byte[]{Consts.INSTALL_NONCE_STORAGE, 1, memoryType});
+            setup(cm);
+            byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+            Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+            ResponseAPDU responseAPDU = sign(cm, tv.message());
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            if(JCFROST.DEBUG) {
+                Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+            }
+            Assert.assertEquals(sign(cm, tv.message()).getSW(), Consts.E_NOT_COMMITTED & 0xffff);
+        }
+    }
+
+    @Test
+    public void testPreprocess() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        ResponseAPDU responseAPDU = preprocess(cm, 1, 2, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD)));
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        Assert.assertEquals(responseAPDU.getData().length, 2 * 66);
+        byte[] card_data = Arrays.copyOfRange(responseAPDU.getData(), 66, 2 * 66);
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(Util.concat(tv.hidingCommitment(CARD), tv.bindingCommitment(CARD)), card_data);
+        }
+        Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+        responseAPDU = signPreprocessed(cm, 2, tv.message());
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+        }
+        Assert.assertEquals(signPreprocessed(cm, 2, tv.message()).getSW(), Consts.E_NOT_ENOUGH_COMMITMENTS & 0xffff);
+        Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+        Assert.assertEquals(signPreprocessed(cm, 2, tv.message()).getSW(), Consts.E_SLOT_EMPTY & 0xffff);
+        Assert.assertEquals(signPreprocessed(cm, 0, tv.message()).getSW(), Consts.E_SLOT_EMPTY & 0xffff);
+        Assert.assertEquals(signPreprocessed(cm, 0x7f, tv.message()).getSW(), Consts.E_INVALID_SLOT & 0xffff);
+        Assert.assertEquals(cm.transmit(new CommandAPDU(Consts.CLA_JCFROST, Consts.INS_SIGN_PREPROCESSED, 0, 0)).getSW(), 0x6700);
+        Assert.assertEquals(sign(cm, tv.message()).getSW(), Consts.E_NOT_COMMITTED & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testResetCommit() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] randomness = Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD));
+        byte[] card_data = Arrays.copyOfRange(preprocess(cm, 0, 1, randomness).getData(), 0, 66);
+        commit(cm, Util.concat(tv.bindingRandomness(CARD), tv.hidingRandomness(CARD)));
+        Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), (Consts.E_COMMITMENTS_PREFIX | ((Consts.E_COMMITMENT_MISMATCH & 0x1f) << 8)) & 0xffff);
+        reset(cm);
+        Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+        Assert.assertEquals(sign(cm, tv.message()).getSW(), Consts.E_NOT_COMMITTED & 0xffff);
+        Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+        ResponseAPDU responseAPDU = signPreprocessed(cm, 0, tv.message());
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+        }
+        reset(cm);
+    }
+
+    @Test
+    public void testSessions() throws Exception {
+        CardManager cm = connect();
+        setup(cm);
+        byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD)), 0).getData();
+        byte[] other_data = commit(cm, Util.concat(tv.bindingRandomness(CARD), tv.hidingRandomness(CARD)), 1).getData();
+        Assert.assertEquals(commitments(cm, commitmentList(other_data), 1).getSW(), 0x9000);
+        Assert.assertEquals(commitments(cm, commitmentList(card_data), 0).getSW(), 0x9000);
+        ResponseAPDU responseAPDU = sign(cm, tv.message(), 0);
+        Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+        if(JCFROST.DEBUG) {
+            Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+        }
+        ResponseAPDU otherAPDU = sign(cm, tv.message(), 1);
+        Assert.assertEquals(otherAPDU.getSW(), 0x9000);
+        if(JCFROST.DEBUG) {
+            // session 0 with the nonces of session 1 must give the same share
+            Assert.assertArrayEquals(other_data, commit(cm, Util.concat(tv.bindingRandomness(CARD), tv.hidingRandomness(CARD)), 0).getData());
+            Assert.assertEquals(commitments(cm, commitmentList(other_data), 0).getSW(), 0x9000);
+            Assert.assertArrayEquals(otherAPDU.getData(), sign(cm, tv.message(), 0).getData());
+            Assert.assertFalse(Arrays.equals(otherAPDU.getData(), responseAPDU.getData()));
+        }
+        Assert.assertEquals(commit(cm, new byte[0], 0x7f).getSW(), Consts.E_INVALID_SESSION & 0xffff);
+        reset(cm);
+    }
+
+    @Test
+    public void testLambdaCache() throws Exception {
+        if(!JCFROST.DEBUG) {
+            return;
+        }
+        CardManager cm = connectRaw(new byte[]{Consts.INSTALL_PROFILE, 1, 1});
+        int[] rsaCalls = new int[3];
+        for(int round = 0; round < 3; ++round) {
+            if(round != 1) {
+                setup(cm); // invalidates the cache
+            }
+            byte[] card_data = commit(cm, Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD))).getData();
+            Assert.assertEquals(commitments(cm, commitmentList(card_data)).getSW(), 0x9000);
+            profile(cm);
+            ResponseAPDU responseAPDU = sign(cm, tv.message());
+            Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+            Assert.assertArrayEquals(tv.signature(CARD), responseAPDU.getData());
+            rsaCalls[round] = profileCount(profile(cm).getData(), Consts.PHASE_LAMBDA, jcmathlib.Profiler.RSA);
+        }
+        // only the multiplication by the secret is left on a cache hit, the inversion of a miss is skipped
+        Assert.assertTrue(rsaCalls[1] < rsaCalls[0]);
+        Assert.assertEquals(rsaCalls[2], rsaCalls[0]);
+        reset(cm);
+    }
+
+    @Test
+    public void testLargeIdentifiers() throws Exception {
+        if(!JCFROST.DEBUG) {
+            return;
+        }
+        ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec("secp256k1");
+        BigInteger[] polynomial = {new BigInteger(1, tv.secret(CARD)), BigInteger.valueOf(0x1234567), BigInteger.valueOf(0x7654321)};
+        byte[] groupKey = spec.getG().multiply(polynomial[0]).getEncoded(true);
+        int[] identifiers = {3, 13, 15};
+        BigInteger[] shares = new BigInteger[identifiers.length];
+        for(int j = 0; j < identifiers.length; ++j) {
+            BigInteger x = BigInteger.valueOf(identifiers[j]);
+            shares[j] = polynomial[0].add(polynomial[1].multiply(x)).add(polynomial[2].multiply(x).multiply(x)).mod(spec.getN());
+        }
+        byte[] randomness = Util.concat(tv.hidingRandomness(CARD), tv.bindingRandomness(CARD));
+        for(int capacity : new int[]{12, 16}) { // factors of identifiers above 12 are precomputed only with capacity 16
+            CardManager cm = connectRaw(new byte[]{Consts.INSTALL_MAX_PARTIES, 1, (byte) capacity});
+            byte[] list = new byte[0];
+            for(int j = 0; j < identifiers.length; ++j) {
+                Assert.assertEquals(setup(cm, 3, 20, identifiers[j], shares[j], groupKey).getSW(), 0x9000);
+                list = Util.concat(list, identifier(identifiers[j]), commit(cm, randomness).getData());
+            }
+            BigInteger[] signatureShares = new BigInteger[identifiers.length];
+            for(int j = 0; j < identifiers.length; ++j) {
+                setup(cm, 3, 20, identifiers[j], shares[j], groupKey);
+                commit(cm, randomness);
+                Assert.assertEquals(commitments(cm, list).getSW(), 0x9000);
+                ResponseAPDU responseAPDU = sign(cm, tv.message());
+                Assert.assertEquals(responseAPDU.getSW(), 0x9000);
+                signatureShares[j] = new BigInteger(1, responseAPDU.getData());
+            }
+            Assert.assertTrue(verifyShares(groupKey, tv.message(), list, signatureShares));
+        }
+    }
 }